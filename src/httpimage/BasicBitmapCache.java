@@ -20,8 +20,11 @@
 
 package httpimage;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
 import java.util.HashMap;
-import java.util.Map;
 
 import android.graphics.Bitmap;
 import android.util.Log;
@@ -30,26 +33,84 @@ import android.util.Log;
 /**
  * Basic memory cache implementation of BitmapCache 
  * 
+ * <p>
+ * Entries are chained in a doubly linked list in the order of their last use, the least
+ * recently used one at the head. Lookup, insertion and eviction are all O(1).
+ * 
+ * <p>
+ * Optionally, evicted bitmaps go to an overflow tier that only holds them through soft or
+ * weak references. A bitmap the GC hasn't collected yet is then found there and promoted 
+ * back, instead of being read from storage and decoded again.
+ * 
  * @author zonghai@gmail.com
  */
 public class BasicBitmapCache implements BitmapCache{
     
     private static class CacheEntry {
+        public String key;
         public Bitmap data;
+        public int size;
         public int nUsed;
         public long timestamp;
+        
+        // access order links
+        public CacheEntry prev;
+        public CacheEntry next;
     }
     
     
+    private static class SoftEntry extends SoftReference<Bitmap> {
+        public final String key;
+        
+        public SoftEntry(String key, Bitmap data, ReferenceQueue<Bitmap> q) {
+            super(data, q);
+            this.key = key;
+        }
+    }
+    
+    
+    private static class WeakEntry extends WeakReference<Bitmap> {
+        public final String key;
+        
+        public WeakEntry(String key, Bitmap data, ReferenceQueue<Bitmap> q) {
+            super(data, q);
+            this.key = key;
+        }
+    }
+    
+    
+    /** No overflow tier, evicted bitmaps are left to the GC */
+    public static final int OVERFLOW_NONE = 0;
+    
+    /** Evicted bitmaps are kept through soft references */
+    public static final int OVERFLOW_SOFT = 1;
+    
+    /** Evicted bitmaps are kept through weak references */
+    public static final int OVERFLOW_WEAK = 2;
+    
+    
     private static final String TAG = "BasicBitmapCache";
     private static final boolean DEBUG = false;
     
     private int mMaxSize;
+    private int mSize;
+    private BitmapPool mPool;
+    
+    private int mOverflowType = OVERFLOW_NONE;
+    private HashMap<String, Reference<Bitmap>> mOverflow = new HashMap<String, Reference<Bitmap>> ();
+    private ReferenceQueue<Bitmap> mOverflowQueue = new ReferenceQueue<Bitmap> ();
+    
+    private int mHitCount;
+    private int mOverflowHitCount;
+    private int mMissCount;
     private HashMap<String, CacheEntry> mMap = new HashMap<String, CacheEntry> ();
+    private CacheEntry mHead; // least recently used
+    private CacheEntry mTail; // most recently used
     
 
     /**
-     * max number of resource this cache contains
+     * max number of resource this cache contains, or the max total size when 
+     * sizeOf() is overridden.
      * @param size
      */
     public BasicBitmapCache (int size) {
@@ -59,76 +120,312 @@ public class BasicBitmapCache implements BitmapCache{
     
     @Override
     public synchronized boolean exists(String key){
-       return mMap.get(key) != null;
+       if (mMap.containsKey(key)) {
+           return true;
+       }
+       Reference<Bitmap> ref = mOverflow.get(key);
+       return ref != null && ref.get() != null;
     }
 
     
     @Override
     public synchronized void invalidate(String key){
-        CacheEntry e = mMap.get(key);
-        Bitmap data = e.data;
-        //data.recycle(); // we are only relying on GC to reclaim the memory
-        mMap.remove(key);
+        mOverflow.remove(key);
+        CacheEntry e = mMap.remove(key);
+        if (e == null) {
+            return;
+        }
+        unlink(e);
+        mSize -= e.size;
+        //e.data.recycle(); // we are only relying on GC to reclaim the memory
         if(DEBUG) Log.d(TAG, key + " is invalidated from the cache");
     }
 
     
     @Override
     public synchronized void clear(){
-         for ( String key : mMap.keySet()) {
-             invalidate(key);
-         }
+         mMap.clear();
+         mHead = mTail = null;
+         mSize = 0;
+         mOverflow.clear();
+         if(DEBUG) Log.d(TAG, "cache cleared");
     }
 
     
     /**
      * If the cache storage is full, return an item to be removed. 
      * 
-     * Default strategy:  oldest out: O(n)
+     * Default strategy:  oldest out: O(1). The head of the access list is the entry 
+     * with the oldest timestamp.
      * 
-     * @return item key
+     * @return item key, null if the cache is empty
      */
     protected synchronized String findItemToInvalidate() {
-        Map.Entry<String, CacheEntry> out = null;
-        for(Map.Entry<String, CacheEntry> e : mMap.entrySet()){
-            if( out == null || e.getValue().timestamp < out.getValue().timestamp) {
-                out = e;
-            }
+        return mHead == null ? null : mHead.key;
+    }
+
+
+    /**
+     * Number of times a bitmap has been used, 0 if it is not cached. 
+     * Doesn't change the eviction order.
+     * @param key
+     */
+    public synchronized int getUseCount(String key) {
+        CacheEntry e = mMap.get(key);
+        return e == null ? 0 : e.nUsed;
+    }
+
+
+    /**
+     * Last time a bitmap has been used, 0 if it is not cached. 
+     * Doesn't change the eviction order.
+     * @param key
+     */
+    public synchronized long getTimestamp(String key) {
+        CacheEntry e = mMap.get(key);
+        return e == null ? 0 : e.timestamp;
+    }
+
+
+    @Override
+    public synchronized void trimMemory(int level) {
+        if (level >= TRIM_MEMORY_COMPLETE) {
+            clear();
+            return;
+        }
+        trimToSize(TrimPolicy.trimmedSize(mSize, level));
+        if (level >= TRIM_MEMORY_BACKGROUND) {
+            mOverflow.clear();
         }
-        return out.getKey();
+    }
+
+
+    /**
+     * Drop least recently used bitmaps until the total size is no more than maxSize. 
+     * Dropped bitmaps neither go to the pool nor to the overflow tier.
+     * @param maxSize
+     */
+    public synchronized void trimToSize(int maxSize) {
+        while (mHead != null && mSize > maxSize) {
+            invalidate(mHead.key);
+        }
+        if(DEBUG) Log.d(TAG, "trimmed to " + mSize);
+    }
+
+
+    /**
+     * Number of bitmaps currently cached
+     */
+    public synchronized int size() {
+        return mMap.size();
+    }
+
+
+    /**
+     * Sum of sizeOf() over all cached bitmaps
+     */
+    public synchronized int getSize() {
+        return mSize;
+    }
+
+
+    public synchronized int getMaxSize() {
+        return mMaxSize;
+    }
+
+
+    /**
+     * Let bitmaps evicted for lack of room go to the pool for reuse by the decoder. 
+     * Only do this when the cache holds more bitmaps than can be on screen at a time, 
+     * since a pooled bitmap gets overwritten. 
+     * @param pool null to disable
+     */
+    public synchronized void setBitmapPool(BitmapPool pool) {
+        mPool = pool;
+    }
+
+
+    /**
+     * Keep evicted bitmaps in an overflow tier, through soft or weak references. 
+     * Ignored while a bitmap pool is set, as pooled bitmaps get overwritten.
+     * 
+     * @param type OVERFLOW_NONE, OVERFLOW_SOFT or OVERFLOW_WEAK
+     */
+    public synchronized void setOverflowType(int type) {
+        if (type != OVERFLOW_NONE && type != OVERFLOW_SOFT && type != OVERFLOW_WEAK) 
+            throw new IllegalArgumentException("unknown overflow type: " + type);
+        
+        mOverflowType = type;
+        if (type == OVERFLOW_NONE) {
+            mOverflow.clear();
+        }
+    }
+
+
+    /**
+     * Number of loads served by the strong tier
+     */
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+
+    /**
+     * Number of loads served by the overflow tier, each of which saved a read from 
+     * storage and a decode.
+     */
+    public synchronized int getOverflowHitCount() {
+        return mOverflowHitCount;
+    }
+
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+
+    /**
+     * Called, with the cache locked, after an entry has been evicted to make room 
+     * for a new one. Not called for invalidate() or clear().
+     * 
+     * @param key
+     * @param data
+     */
+    protected void entryEvicted(String key, Bitmap data) {
+        if (mPool != null) {
+            mPool.put(data);
+        }
+        else if (mOverflowType == OVERFLOW_SOFT) {
+            mOverflow.put(key, new SoftEntry(key, data, mOverflowQueue));
+        }
+        else if (mOverflowType == OVERFLOW_WEAK) {
+            mOverflow.put(key, new WeakEntry(key, data, mOverflowQueue));
+        }
+    }
+
+
+    /**
+     * Size of an entry, in the same unit as the max size given to the constructor. 
+     * Default is 1, i.e. the cache is bounded by the number of entries.
+     * 
+     * @param key
+     * @param data
+     */
+    protected int sizeOf(String key, Bitmap data) {
+        return 1;
     }
 
     
     @Override
     public synchronized Bitmap loadData(String key) {
-        if(!exists(key)) {
-            return null;
-        }
         CacheEntry res = mMap.get(key);
+        if(res == null) {
+            return loadOverflowData(key);
+        }
+        mHitCount++;
         res.nUsed++;
         res.timestamp = System.currentTimeMillis();
+        unlink(res);
+        linkLast(res);
         return res.data;
     }
 
 
+    @Override
+    public Bitmap peekData(String key) {
+        return loadData(key);
+    }
+
+
     @Override
     public synchronized void storeData(String key, Object data) {
-        if(this.exists(key)) {
+        if(mMap.containsKey(key)) {
             return;
         }
+        mOverflow.remove(key);
+        purgeOverflow();
+        
         CacheEntry res = new CacheEntry();
+        res.key = key;
         res.nUsed = 1;
         res.timestamp = System.currentTimeMillis();
         res.data = (Bitmap)data;
+        res.size = sizeOf(key, res.data);
         
-        //if the number exceeds, move an item out 
+        //if the size exceeds, move items out 
         //to prevent the storage from increasing indefinitely.
-        if(mMap.size() >= mMaxSize) {
+        while(!mMap.isEmpty() && mSize + res.size > mMaxSize) {
             String outkey = this.findItemToInvalidate();
+            CacheEntry out = outkey == null ? null : mMap.get(outkey);
+            if (out == null) 
+                break;
             this.invalidate(outkey);
+            this.entryEvicted(outkey, out.data);
         }
         
         mMap.put(key, res);
+        linkLast(res);
+        mSize += res.size;
+    }
+    
+    
+    /*
+     * Look the overflow tier up, and promote a hit back into the strong tier.
+     */
+    private Bitmap loadOverflowData(String key) {
+        purgeOverflow();
+        
+        Reference<Bitmap> ref = mOverflow.remove(key);
+        Bitmap data = ref == null ? null : ref.get();
+        if (data == null) {
+            mMissCount++;
+            return null;
+        }
+        
+        mOverflowHitCount++;
+        if(DEBUG) Log.d(TAG, key + " is promoted from the overflow tier");
+        storeData(key, data);
+        return data;
+    }
+    
+    
+    /*
+     * Forget the overflow entries whose bitmap has been collected.
+     */
+    private void purgeOverflow() {
+        Reference<? extends Bitmap> ref;
+        while ((ref = mOverflowQueue.poll()) != null) {
+            String key = ref instanceof SoftEntry ? ((SoftEntry) ref).key : ((WeakEntry) ref).key;
+            if (mOverflow.get(key) == ref) {
+                mOverflow.remove(key);
+            }
+        }
+    }
+    
+    
+    private void linkLast(CacheEntry e) {
+        e.prev = mTail;
+        e.next = null;
+        if (mTail != null) 
+            mTail.next = e;
+        else 
+            mHead = e;
+        mTail = e;
+    }
+    
+    
+    private void unlink(CacheEntry e) {
+        if (e.prev != null) 
+            e.prev.next = e.next;
+        else
+            mHead = e.next;
+        
+        if (e.next != null)
+            e.next.prev = e.prev;
+        else 
+            mTail = e.prev;
+        
+        e.prev = e.next = null;
     }
 
 }
@@ -29,6 +29,16 @@ import android.graphics.Bitmap;
  * @author zonghai@gmail.com
  */
 public interface BitmapCache {
+    
+    /** Trim level: the system runs low on memory, release about half of what is held */
+    public static final int TRIM_MEMORY_MODERATE = 1;
+    
+    /** Trim level: the app went to the background, keep about a quarter of what is held */
+    public static final int TRIM_MEMORY_BACKGROUND = 2;
+    
+    /** Trim level: release everything held in memory */
+    public static final int TRIM_MEMORY_COMPLETE = 3;
+    
 
     /**
      * Test if a specified bitmap exists
@@ -52,6 +62,16 @@ public interface BitmapCache {
     public Bitmap loadData(String key);
     
     
+    /**
+     * Retrieve the bitmap only if it is immediately available, with a single lookup. 
+     * Unlike exists() followed by loadData(), it can't be fooled by an eviction in between.
+     * It must not block on I/O; storage backed implementations simply return null. 
+     * @param key
+     * @return the bitmap, or null if it is not at hand
+     */
+    public Bitmap peekData(String key);
+    
+    
     /**
      * Store bitmap
      * @param key
@@ -64,4 +84,12 @@ public interface BitmapCache {
      * Clear this bitmap cache, reclaim all resources assigned.
      */
     public void clear();
+    
+    
+    /**
+     * Release part of the memory held, according to the severity level. 
+     * Storage backed implementations have nothing to release.
+     * @param level TRIM_MEMORY_MODERATE, TRIM_MEMORY_BACKGROUND or TRIM_MEMORY_COMPLETE
+     */
+    public void trimMemory(int level);
 }
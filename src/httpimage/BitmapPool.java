@@ -0,0 +1,171 @@
+//  Copyright 2012 Zonghai Li. All rights reserved.
+//
+//  Redistribution and use in binary and source forms, with or without modification,
+//  are permitted for any project, commercial or otherwise, provided that the
+//  following conditions are met:
+//  
+//  Redistributions in binary form must display the copyright notice in the About
+//  view, website, and/or documentation.
+//  
+//  Redistributions of source code must retain the copyright notice, this list of
+//  conditions, and the following disclaimer.
+//
+//  THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+//  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+//  PARTICULAR PURPOSE AND NONINFRINGEMENT OF THIRD PARTY RIGHTS. IN NO EVENT SHALL THE
+//  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+//  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+//  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THIS SOFTWARE.
+
+
+package httpimage;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+
+/**
+ * A pool of bitmaps which are no longer displayed nor cached, kept around to be reused by 
+ * the decoder (BitmapFactory.Options.inBitmap) instead of allocating new pixel memory.
+ * 
+ * <p>
+ * Bitmaps are grouped by width, height and config, since that is what a decode has to 
+ * match in order to reuse a bitmap. The pool is bounded by the bytes it holds; when full,
+ * bitmaps of the least recently used group are dropped first.
+ * 
+ * <p>
+ * Only put a bitmap into the pool if nothing draws it anymore: the next decode will 
+ * overwrite its pixels.
+ * 
+ * @author zonghai@gmail.com
+ */
+public class BitmapPool {
+    
+    private static final String TAG = "BitmapPool";
+    private static final boolean DEBUG = false;
+    
+    
+    /**
+     * @param maxBytes max number of bytes of the pooled bitmaps
+     */
+    public BitmapPool(int maxBytes) {
+        mMaxSize = maxBytes;
+    }
+    
+    
+    /**
+     * Take a bitmap of the given dimension and config out of the pool.
+     * @return a reusable bitmap, or null if none matches
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        ArrayList<Bitmap> group = mGroups.get(groupKey(width, height, config));
+        if (group == null || group.isEmpty()) {
+            mMissCount++;
+            return null;
+        }
+        
+        Bitmap bitmap = group.remove(group.size() - 1);
+        mSize -= BitmapUtil.getByteCount(bitmap);
+        mHitCount++;
+        return bitmap;
+    }
+    
+    
+    /**
+     * Offer a bitmap to the pool. Only mutable bitmaps can be reused by the decoder.
+     * @return true if the bitmap was pooled
+     */
+    public synchronized boolean put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() || bitmap.getConfig() == null) {
+            return false;
+        }
+        
+        int size = BitmapUtil.getByteCount(bitmap);
+        if (size > mMaxSize) {
+            return false;
+        }
+        
+        trimToSize(mMaxSize - size);
+        
+        String key = groupKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayList<Bitmap> group = mGroups.get(key);
+        if (group == null) {
+            group = new ArrayList<Bitmap>();
+            mGroups.put(key, group);
+        }
+        group.add(bitmap);
+        mSize += size;
+        
+        if(DEBUG) Log.d(TAG, "pooled " + key + ", pool size: " + mSize);
+        return true;
+    }
+    
+    
+    /**
+     * Drop pooled bitmaps until the pool holds no more than maxBytes.
+     */
+    public synchronized void trimToSize(int maxBytes) {
+        Iterator<ArrayList<Bitmap>> it = mGroups.values().iterator();
+        while (mSize > maxBytes && it.hasNext()) {
+            ArrayList<Bitmap> group = it.next();
+            while (mSize > maxBytes && !group.isEmpty()) {
+                // drop the reference only, in case someone still draws it
+                mSize -= BitmapUtil.getByteCount(group.remove(0));
+            }
+            if (group.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+    
+    
+    public synchronized void clear() {
+        mGroups.clear();
+        mSize = 0;
+    }
+    
+    
+    public synchronized int getSize() {
+        return mSize;
+    }
+    
+    
+    public synchronized int getMaxSize() {
+        return mMaxSize;
+    }
+    
+    
+    /**
+     * Number of get() calls which returned a reusable bitmap
+     */
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+    
+    
+    /**
+     * Number of get() calls which found nothing to reuse
+     */
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+    
+    
+    ////////PRIVATE
+    private static String groupKey(int width, int height, Bitmap.Config config) {
+        return width + "x" + height + ":" + config;
+    }
+    
+    
+    private int mMaxSize;
+    private int mSize;
+    private int mHitCount;
+    private int mMissCount;
+    
+    // access-ordered, the least recently used group comes first
+    private LinkedHashMap<String, ArrayList<Bitmap>> mGroups = new LinkedHashMap<String, ArrayList<Bitmap>>(16, 0.75f, true);
+}
@@ -20,15 +20,16 @@
 
 package httpimage;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Field;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.Build;
 import android.util.Log;
 
 
@@ -40,27 +41,139 @@ import android.util.Log;
 public class BitmapUtil {
 
     private static final int UNCONSTRAINED = -1;
+    
+    private static final int STREAM_BUFFER_SIZE = 16 * 1024;
+    
+    // how far the bounds pass may read into a stream, the buffer grows up to that if needed
+    private static final int MARK_LIMIT = 1024 * 1024;
 
     private static String TAG = "ImageUtil";
     private static boolean DEBUG = true;
+    
+    // BitmapFactory.Options.inBitmap and inMutable only exist since API 11
+    private static final Field OPTIONS_IN_BITMAP;
+    private static final Field OPTIONS_IN_MUTABLE;
+    
+    private static volatile DecodeBudget sDecodeBudget = new DecodeBudget(Runtime.getRuntime().maxMemory() / 4);
+    
+    static {
+        Field inBitmap = null;
+        Field inMutable = null;
+        if (Build.VERSION.SDK_INT >= 11) {
+            try {
+                inBitmap = BitmapFactory.Options.class.getField("inBitmap");
+                inMutable = BitmapFactory.Options.class.getField("inMutable");
+            } catch (NoSuchFieldException e) {
+                inBitmap = inMutable = null;
+            }
+        }
+        OPTIONS_IN_BITMAP = inBitmap;
+        OPTIONS_IN_MUTABLE = inMutable;
+    }
 
 
     public static Bitmap decodeByteArray( byte[] bytes, int maxNumOfPixels) {
+        return decodeByteArray(bytes, maxNumOfPixels, null);
+    }
+    
+    
+    /**
+     * Decode, reusing the pixel memory of a pooled bitmap when the platform supports it. 
+     * The result is mutable in that case, so that it can be pooled in its turn.
+     * @param bytes
+     * @param maxNumOfPixels
+     * @param pool may be null
+     */
+    public static Bitmap decodeByteArray( byte[] bytes, int maxNumOfPixels, BitmapPool pool) {
+        
+        try {
+            return decodeByteArray(bytes, constraint(maxNumOfPixels), pool);
+            
+        } catch (OutOfMemoryError oom) {
+
+            Log.w(TAG, oom);
+            return null;
+        }
+    }
+    
+    
+    /**
+     * Decode to the target size of options, see DecodeOptions. The decode waits for 
+     * room in the decode budget.
+     * @param bytes
+     * @param options
+     * @param pool may be null
+     * @throws OutOfMemoryError so that the caller can free memory and retry
+     */
+    public static Bitmap decodeByteArray( byte[] bytes, DecodeOptions options, BitmapPool pool) {
         
         if (bytes == null) return null;
         
-        try {
-            BitmapFactory.Options option = new BitmapFactory.Options();
+        return decodeByteArray(bytes, 0, bytes.length, options, pool);
+    }
+    
+    
+    /**
+     * Decode the image found at [offset, offset + length) of bytes.
+     */
+    public static Bitmap decodeByteArray( byte[] bytes, int offset, int length, DecodeOptions options, BitmapPool pool) {
+        
+        BitmapFactory.Options option = new BitmapFactory.Options();
+        ImageHeader header = ImageHeader.parse(bytes, offset, length);
+        if (header != null) {
+            setBounds(option, header);
+        }
+        else {
             // Decode only image size
             option.inJustDecodeBounds = true;
-            BitmapFactory.decodeByteArray(bytes, 0, bytes.length, option);
-
+            BitmapFactory.decodeByteArray(bytes, offset, length, option);
             option.inJustDecodeBounds = false;
-            option.inSampleSize = computeSampleSize(option, UNCONSTRAINED,
-                    maxNumOfPixels);
+        }
 
-            return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, option);
+        option.inSampleSize = sampleSizeFor(option, options);
+        option.inPreferredConfig = configFor(option, options, header);
 
+        DecodeBudget budget = sDecodeBudget;
+        long cost = admit(budget, option);
+        try {
+            if (pool != null && prepareForReuse(option, pool)) {
+                try {
+                    return BitmapFactory.decodeByteArray(bytes, offset, length, option);
+                }
+                catch (IllegalArgumentException e) {
+                    // the pooled bitmap can't hold this image, decode into a new one.
+                    if(DEBUG) Log.d(TAG, "can't reuse bitmap: " + e.getMessage());
+                    setOptionField(OPTIONS_IN_BITMAP, option, null);
+                }
+            }
+            
+            return BitmapFactory.decodeByteArray(bytes, offset, length, option);
+        }
+        finally {
+            if (budget != null) 
+                budget.release(cost);
+        }
+    }
+    
+    
+    public static Bitmap decodeStream(InputStream is, int maxNumOfPixels) {
+        return decodeStream(is, maxNumOfPixels, null);
+    }
+    
+    
+    /**
+     * Decode from a stream without reading it in memory first. The stream is buffered 
+     * unless it supports mark(), so that it can be rewound after reading the bounds.
+     * @param is
+     * @param maxNumOfPixels
+     * @param pool may be null
+     * @return null if the stream can't be decoded, or can't be rewound
+     */
+    public static Bitmap decodeStream(InputStream is, int maxNumOfPixels, BitmapPool pool) {
+        
+        try {
+            return decodeStream(is, constraint(maxNumOfPixels), pool);
+            
         } catch (OutOfMemoryError oom) {
 
             Log.w(TAG, oom);
@@ -69,26 +182,80 @@ public class BitmapUtil {
     }
     
     
-    public static Bitmap decodeStream(InputStream is, int maxNumOfPixels) {
-
+    /**
+     * Decode from a stream to the target size of options, see decodeStream(InputStream, int, BitmapPool).
+     * The decode waits for room in the decode budget.
+     * @throws OutOfMemoryError so that the caller can free memory and retry
+     */
+    public static Bitmap decodeStream(InputStream is, DecodeOptions options, BitmapPool pool) {
+        
         if (is == null) return null;
         
+        InputStream in = is.markSupported() ? is : new BufferedInputStream(is, STREAM_BUFFER_SIZE);
         try {
-            return decodeByteArray( readStream(is), maxNumOfPixels);
+            BitmapFactory.Options option = new BitmapFactory.Options();
+            in.mark(MARK_LIMIT);
+            ImageHeader header = ImageHeader.read(in);
+            in.reset();
+            if (header != null) {
+                setBounds(option, header);
+            }
+            else {
+                // Decode only image size
+                option.inJustDecodeBounds = true;
+                in.mark(MARK_LIMIT);
+                BitmapFactory.decodeStream(in, null, option);
+                in.reset();
+                option.inJustDecodeBounds = false;
+            }
+
+            option.inSampleSize = sampleSizeFor(option, options);
+            option.inPreferredConfig = configFor(option, options, header);
+
+            DecodeBudget budget = sDecodeBudget;
+            long cost = admit(budget, option);
+            try {
+                if (pool != null && prepareForReuse(option, pool)) {
+                    in.mark(MARK_LIMIT);
+                    try {
+                        return BitmapFactory.decodeStream(in, null, option);
+                    }
+                    catch (IllegalArgumentException e) {
+                        // the pooled bitmap can't hold this image, decode into a new one.
+                        if(DEBUG) Log.d(TAG, "can't reuse bitmap: " + e.getMessage());
+                        setOptionField(OPTIONS_IN_BITMAP, option, null);
+                        in.reset();
+                    }
+                }
+                
+                // no rewind from here: drop the mark, or a buffered stream holds all it reads
+                in.mark(0);
+                return BitmapFactory.decodeStream(in, null, option);
+            }
+            finally {
+                if (budget != null) 
+                    budget.release(cost);
+            }
 
         } catch (IOException e) {
-            Log.w(TAG, e);
+            // read past the mark
+            Log.w(TAG, "can't rewind stream: " + e.getMessage());
             return null;
         }
     }
     
     
     public static Bitmap decodeFile(String filePath, int maxNumOfPixels) {
+        return decodeFile(filePath, maxNumOfPixels, null);
+    }
+    
+    
+    public static Bitmap decodeFile(String filePath, int maxNumOfPixels, BitmapPool pool) {
         
         FileInputStream fis = null;
         try {
             fis = new FileInputStream(new File(filePath));
-            return decodeByteArray(readStream(fis), maxNumOfPixels);
+            return decodeStream(fis, maxNumOfPixels, pool);
 
         } catch (IOException e) {
             Log.w(TAG, e);
@@ -103,62 +270,64 @@ public class BitmapUtil {
     }
     
     
-    /*
-    public static Bitmap decodeByteArray(byte[] bytes, int requestWidth, int requestHeight) {
-        
-        if (bytes == null)  return null;
-        
-        try {
-            BitmapFactory.Options option = new BitmapFactory.Options();
-            // Decode only image size
-            option.inJustDecodeBounds = true;
-            BitmapFactory.decodeByteArray(bytes, 0, bytes.length, option);
-
-            option.inJustDecodeBounds = false;
-            option.inSampleSize = calculateInSampleSize(option, requestWidth, requestHeight);
-
-            return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, option);
-
-        } catch (OutOfMemoryError oom) {
-
-            Log.w(TAG, oom);
-            return null;
-        }
+    /**
+     * Set the budget for the pixel memory of the decodes in progress, process wide. 
+     * A quarter of the max heap size by default.
+     * @param budget null for no limit
+     */
+    public static void setDecodeBudget(DecodeBudget budget) {
+        sDecodeBudget = budget;
     }
-
     
-    public static Bitmap decodeStream(InputStream is, int width, int height) {
-        if (is == null) return null;
-        
-        try {
-            return decodeByteArray( readStream(is), width, height);
-
-        } catch (IOException e) {
-            Log.w(TAG, e);
-            return null;
-        }
+    
+    public static DecodeBudget getDecodeBudget() {
+        return sDecodeBudget;
+    }
+    
+    
+    /**
+     * Whether decoded bitmaps can be reused through BitmapFactory.Options.inBitmap
+     */
+    public static boolean isBitmapReuseSupported() {
+        return OPTIONS_IN_BITMAP != null;
     }
     
     
-    public static Bitmap decodeFile(String filePath, int repWidth, int repHeight) {
+    /**
+     * Number of bytes used to store the pixels of a bitmap.
+     */
+    public static int getByteCount(Bitmap bitmap) {
+        // Bitmap.getByteCount() is only available since API 12 
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+    
+    
+    /**
+     * Scale a bitmap down to fit in width x height, keeping its aspect ratio. 
+     * @return bitmap itself if it already fits
+     */
+    public static Bitmap scaleToFit(Bitmap bitmap, int width, int height) {
+        float scale = 1;
+        if (width > 0) 
+            scale = Math.min(scale, (float)width / bitmap.getWidth());
+        if (height > 0) 
+            scale = Math.min(scale, (float)height / bitmap.getHeight());
+        
+        if (scale >= 1) {
+            return bitmap;
+        }
         
-        BitmapFactory.Options option = new BitmapFactory.Options();
-        option.inJustDecodeBounds = true;
-        BitmapFactory.decodeFile(filePath, option);
-
-        option.inJustDecodeBounds = false;
-        option.inSampleSize = calculateInSampleSize(option, repWidth, repHeight);
         try {
-            return BitmapFactory.decodeFile(filePath, option);
+            return Bitmap.createScaledBitmap(bitmap, Math.max(1, Math.round(bitmap.getWidth() * scale)), 
+                    Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
         } catch (OutOfMemoryError oom) {
             Log.w(TAG, oom);
-
-            return null;
+            return bitmap;
         }
     }
     
     
-    
+    /*
     public static void saveBitmapToFile(Bitmap bitmap, File file) {
         FileOutputStream outputStream = null;
         
@@ -270,23 +439,127 @@ public class BitmapUtil {
     }
 
     
-    private static byte[] readStream(InputStream is) throws IOException {
-        int len;
-        byte[] buf;
-
-        if (is instanceof ByteArrayInputStream) {
-            int size = is.available();
-            buf = new byte[size];
-            len = is.read(buf, 0, size);
-        } else {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            buf = new byte[1024];
-            while ((len = is.read(buf, 0, 1024)) != -1)
-                bos.write(buf, 0, len);
-            buf = bos.toByteArray();
+    /*
+     * Subsampling that honors both the target size and the pixel budget.
+     */
+    private static int sampleSizeFor(BitmapFactory.Options option, DecodeOptions options) {
+        return Math.max(computeSampleSize(option, UNCONSTRAINED, options.getMaxNumOfPixels()), 
+                calculateInSampleSize(option, options.getTargetWidth(), options.getTargetHeight()));
+    }
+    
+    
+    /*
+     * The largest power of 2 that keeps the image at least as large as requested, 
+     * in each constrained dimension.
+     */
+    private static int calculateInSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight) {
+        int w = options.outWidth;
+        int h = options.outHeight;
+        if (w <= 0 || h <= 0 || (reqWidth <= 0 && reqHeight <= 0)) {
+            return 1;
+        }
+        
+        int sampleSize = 1;
+        while ((reqWidth <= 0 || w / (sampleSize * 2) >= reqWidth) 
+                && (reqHeight <= 0 || h / (sampleSize * 2) >= reqHeight)) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+    
+    
+    /* The bounds pass, from the sniffed header instead of the decoder. */
+    private static void setBounds(BitmapFactory.Options option, ImageHeader header) {
+        option.outWidth = header.getWidth();
+        option.outHeight = header.getHeight();
+        option.outMimeType = header.getMimeType();
+    }
+    
+    
+    /*
+     * The requested pixel format. In auto mode, the header tells whether there is alpha;
+     * without one the bounds pass tells the format: JPEG has no alpha channel. 
+     * header is null when the format isn't known to ImageHeader.
+     */
+    private static Bitmap.Config configFor(BitmapFactory.Options option, DecodeOptions options, ImageHeader header) {
+        if (options.getConfig() != DecodeOptions.CONFIG_AUTO) {
+            return options.getConfig();
+        }
+        boolean hasAlpha = header != null ? header.hasAlpha() : !"image/jpeg".equals(option.outMimeType);
+        return hasAlpha ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
+    }
+    
+    
+    /*
+     * Wait for room for the pixels the options decode to. 
+     * @return the amount to release
+     */
+    private static long admit(DecodeBudget budget, BitmapFactory.Options option) {
+        if (budget == null || option.outWidth <= 0 || option.outHeight <= 0) {
+            return 0;
         }
         
-        return buf;
+        long cost = pixelBytes(option.outWidth, option.outHeight, option.inSampleSize, option.inPreferredConfig);
+        budget.acquire(cost);
+        return cost;
+    }
+    
+    
+    /* Pixel memory of an image of width x height decoded at the sample size. */
+    static long pixelBytes(int width, int height, int sampleSize, Bitmap.Config config) {
+        sampleSize = Math.max(1, sampleSize);
+        long w = (width + sampleSize - 1) / sampleSize;
+        long h = (height + sampleSize - 1) / sampleSize;
+        return w * h * bytesPerPixel(config);
+    }
+    
+    
+    private static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) 
+            return 1;
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) 
+            return 2;
+        return 4;
+    }
+    
+    
+    private static DecodeOptions constraint(int maxNumOfPixels) {
+        return new DecodeOptions(DecodeOptions.UNCONSTRAINED, DecodeOptions.UNCONSTRAINED, maxNumOfPixels);
+    }
+    
+    
+    /*
+     * Set up the options to decode into a pooled bitmap, if there's one of the right size. 
+     * Until API 19 the decoder only reuses a bitmap of exactly the same dimension and 
+     * without subsampling.
+     */
+    private static boolean prepareForReuse(BitmapFactory.Options option, BitmapPool pool) {
+        if (!isBitmapReuseSupported()) {
+            return false;
+        }
+        
+        setOptionField(OPTIONS_IN_MUTABLE, option, Boolean.TRUE);
+        if (option.inSampleSize != 1 || option.outWidth <= 0 || option.outHeight <= 0) {
+            return false;
+        }
+        
+        Bitmap.Config config = option.inPreferredConfig != null ? option.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        Bitmap reusable = pool.get(option.outWidth, option.outHeight, config);
+        if (reusable == null) {
+            return false;
+        }
+        
+        setOptionField(OPTIONS_IN_BITMAP, option, reusable);
+        return true;
+    }
+    
+    
+    private static void setOptionField(Field field, BitmapFactory.Options option, Object value) {
+        try {
+            field.set(option, value);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
     }
     
 
@@ -0,0 +1,141 @@
+//  Copyright 2012 Zonghai Li. All rights reserved.
+//
+//  Redistribution and use in binary and source forms, with or without modification,
+//  are permitted for any project, commercial or otherwise, provided that the
+//  following conditions are met:
+//  
+//  Redistributions in binary form must display the copyright notice in the About
+//  view, website, and/or documentation.
+//  
+//  Redistributions of source code must retain the copyright notice, this list of
+//  conditions, and the following disclaimer.
+//
+//  THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+//  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+//  PARTICULAR PURPOSE AND NONINFRINGEMENT OF THIRD PARTY RIGHTS. IN NO EVENT SHALL THE
+//  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+//  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+//  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THIS SOFTWARE.
+
+
+package httpimage;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+
+/**
+ * Files holding the images too large for a row of the DB backends. A blob read from 
+ * the table goes through a CursorWindow, which is limited to 1-2MB and copies it whole; 
+ * a file is streamed to the decoder instead.
+ * 
+ * <p>
+ * Files are named after the key and start with an EntryChecksum header. They are written
+ * to a temporary file first, then renamed; temporary files left by a crash are deleted 
+ * when the store is created.
+ * 
+ * @author zonghai@gmail.com
+ */
+class BlobFileStore {
+
+    private static final String TAG = "BlobFileStore";
+    private static final boolean DEBUG = false;
+    
+    public static final int DEFAULT_THRESHOLD = 256 * 1024;
+    
+    private static final String TEMP_SUFFIX = ".tmp";
+    
+    private final File mDir;
+    
+    
+    BlobFileStore(File dir) {
+        mDir = dir;
+        removeTempFiles();
+    }
+    
+    
+    File fileFor(String key) {
+        return new File(mDir, key);
+    }
+    
+    
+    /**
+     * Write the data of a key, replacing what's there, atomically.
+     * @return the file written
+     */
+    File write(String key, byte[] data) throws IOException {
+        File file = fileFor(key);
+        mDir.mkdirs();
+        File tmp = File.createTempFile("." + key + "-", TEMP_SUFFIX, mDir);
+        FileOutputStream outputStream = new FileOutputStream(tmp);
+        try {
+            outputStream.write(EntryChecksum.header(data));
+            outputStream.write(data);
+            outputStream.close();
+            outputStream = null;
+            
+            if (!tmp.renameTo(file)) {
+                throw new IOException("can't rename " + tmp + " to " + file);
+            }
+            tmp = null;
+            return file;
+        }
+        finally {
+            if (outputStream != null) {
+                try { outputStream.close(); } catch (IOException e) {}
+            }
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+    
+    
+    /**
+     * @return null if the data verifies but can't be decoded
+     * @throws java.io.FileNotFoundException if there's no such file
+     * @throws IOException if the file can't be read, or is damaged
+     */
+    Bitmap decode(String path, DecodeOptions options, BitmapPool pool) throws IOException {
+        return EntryChecksum.decodeFile(new File(path), options, pool);
+    }
+    
+    
+    void delete(String key) {
+        fileFor(key).delete();
+    }
+    
+    
+    void clear() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+            if (DEBUG) Log.d(TAG, "deleted " + files.length + " files");
+        }
+    }
+    
+    
+    /* Delete what interrupted writes left behind. */
+    private void removeTempFiles() {
+        File[] leftovers = mDir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.getName().startsWith(".") && f.getName().endsWith(TEMP_SUFFIX);
+            }
+        });
+        
+        if (leftovers != null) {
+            for (File f : leftovers) {
+                f.delete();
+            }
+            if (DEBUG && leftovers.length > 0) Log.d(TAG, "removed " + leftovers.length + " temporary files");
+        }
+    }
+}
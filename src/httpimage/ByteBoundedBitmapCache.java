@@ -0,0 +1,121 @@
+//  Copyright 2012 Zonghai Li. All rights reserved.
+//
+//  Redistribution and use in binary and source forms, with or without modification,
+//  are permitted for any project, commercial or otherwise, provided that the
+//  following conditions are met:
+//  
+//  Redistributions in binary form must display the copyright notice in the About
+//  view, website, and/or documentation.
+//  
+//  Redistributions of source code must retain the copyright notice, this list of
+//  conditions, and the following disclaimer.
+//
+//  THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+//  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+//  PARTICULAR PURPOSE AND NONINFRINGEMENT OF THIRD PARTY RIGHTS. IN NO EVENT SHALL THE
+//  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+//  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+//  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THIS SOFTWARE.
+
+
+package httpimage;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+
+/**
+ * Memory cache bounded by the number of bytes the cached bitmaps occupy, rather than 
+ * by the number of bitmaps. 
+ * 
+ * <p>
+ * Each entry is charged its pixel memory. Least recently used entries are evicted until
+ * a new entry fits. An entry larger than a fraction of the whole budget is not cached 
+ * at all, so a single huge bitmap can't flush everything else out.
+ * 
+ * @author zonghai@gmail.com
+ */
+public class ByteBoundedBitmapCache extends BasicBitmapCache {
+    
+    private static final String TAG = "ByteBoundedBitmapCache";
+    private static final boolean DEBUG = false;
+    
+    public static final float DEFAULT_MAX_ENTRY_FRACTION = 0.5f;
+    
+    
+    /**
+     * Compute the memory, in bytes, charged for a bitmap. 
+     */
+    public static interface BitmapSizer {
+        public int sizeOf(Bitmap bitmap);
+    }
+    
+    
+    /**
+     * Charges width * height * bytes-per-pixel, including any row padding. 
+     */
+    public static final BitmapSizer PIXEL_SIZER = new BitmapSizer () {
+        @Override
+        public int sizeOf(Bitmap bitmap) {
+            return BitmapUtil.getByteCount(bitmap);
+        }
+    };
+    
+    
+    /**
+     * @param maxBytes memory budget in bytes
+     */
+    public ByteBoundedBitmapCache(int maxBytes) {
+        this(maxBytes, PIXEL_SIZER);
+    }
+    
+    
+    /**
+     * @param maxBytes memory budget in bytes
+     * @param sizer
+     */
+    public ByteBoundedBitmapCache(int maxBytes, BitmapSizer sizer) {
+        super(maxBytes);
+        if (sizer == null) 
+            throw new NullPointerException("sizer must not be null");
+        mSizer = sizer;
+    }
+    
+    
+    /**
+     * Bitmaps larger than fraction * maxBytes won't be cached.
+     * @param fraction in (0, 1]
+     */
+    public synchronized void setMaxEntryFraction(float fraction) {
+        if (fraction <= 0 || fraction > 1) 
+            throw new IllegalArgumentException("fraction must be in (0, 1]: " + fraction);
+        mMaxEntryFraction = fraction;
+    }
+    
+    
+    public synchronized float getMaxEntryFraction() {
+        return mMaxEntryFraction;
+    }
+    
+    
+    @Override
+    protected int sizeOf(String key, Bitmap data) {
+        return data == null ? 0 : mSizer.sizeOf(data);
+    }
+    
+    
+    @Override
+    public synchronized void storeData(String key, Object data) {
+        int size = sizeOf(key, (Bitmap) data);
+        if (size > getMaxSize() * mMaxEntryFraction) {
+            if(DEBUG) Log.d(TAG, key + " is too large to be cached: " + size + " bytes");
+            return;
+        }
+        super.storeData(key, data);
+    }
+    
+
+    ////////PRIVATE
+    private BitmapSizer mSizer;
+    private float mMaxEntryFraction = DEFAULT_MAX_ENTRY_FRACTION;
+}
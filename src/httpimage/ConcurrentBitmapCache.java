@@ -0,0 +1,305 @@
+//  Copyright 2012 Zonghai Li. All rights reserved.
+//
+//  Redistribution and use in binary and source forms, with or without modification,
+//  are permitted for any project, commercial or otherwise, provided that the
+//  following conditions are met:
+//  
+//  Redistributions in binary form must display the copyright notice in the About
+//  view, website, and/or documentation.
+//  
+//  Redistributions of source code must retain the copyright notice, this list of
+//  conditions, and the following disclaimer.
+//
+//  THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+//  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+//  PARTICULAR PURPOSE AND NONINFRINGEMENT OF THIRD PARTY RIGHTS. IN NO EVENT SHALL THE
+//  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+//  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+//  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THIS SOFTWARE.
+
+
+package httpimage;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+
+/**
+ * Memory cache implementation of BitmapCache for concurrent access. 
+ * 
+ * <p>
+ * Lookups go straight to a ConcurrentHashMap and never take a lock, so the UI thread is
+ * not blocked by loader threads storing bitmaps. The LRU bookkeeping is partitioned by 
+ * key hash into segments, each with its own lock and its own share of the capacity. 
+ * A lookup only moves its entry to the tail of the segment's LRU list if it can grab 
+ * the segment lock without waiting; if a writer holds it, the recency update is skipped. 
+ * 
+ * @author zonghai@gmail.com
+ */
+public class ConcurrentBitmapCache implements BitmapCache {
+    
+    private static final String TAG = "ConcurrentBitmapCache";
+    private static final boolean DEBUG = false;
+    
+    public static final int DEFAULT_CONCURRENCY_LEVEL = 4;
+    
+    
+    private static class CacheEntry {
+        public final String key;
+        public final Bitmap data;
+        public volatile int nUsed;
+        public volatile long timestamp;
+        
+        // access order links, guarded by the segment lock
+        public CacheEntry prev;
+        public CacheEntry next;
+        public boolean linked;
+        
+        public CacheEntry(String key, Bitmap data) {
+            this.key = key;
+            this.data = data;
+        }
+    }
+    
+    
+    private class Segment {
+        final ReentrantLock lock = new ReentrantLock();
+        final int maxSize;
+        int count;
+        CacheEntry head; // least recently used
+        CacheEntry tail; // most recently used
+        
+        Segment(int maxSize) {
+            this.maxSize = maxSize;
+        }
+        
+        void linkLast(CacheEntry e) {
+            e.prev = tail;
+            e.next = null;
+            if (tail != null) 
+                tail.next = e;
+            else 
+                head = e;
+            tail = e;
+            e.linked = true;
+            count++;
+        }
+        
+        void unlink(CacheEntry e) {
+            if (e.prev != null) 
+                e.prev.next = e.next;
+            else
+                head = e.next;
+            
+            if (e.next != null)
+                e.next.prev = e.prev;
+            else 
+                tail = e.prev;
+            
+            e.prev = e.next = null;
+            e.linked = false;
+            count--;
+        }
+        
+        void clear() {
+            for (CacheEntry e = head; e != null; e = e.next) {
+                mMap.remove(e.key, e);
+                e.linked = false;
+            }
+            head = tail = null;
+            count = 0;
+        }
+    }
+    
+    
+    /**
+     * @param size max number of resource this cache contains
+     */
+    public ConcurrentBitmapCache(int size) {
+        this(size, DEFAULT_CONCURRENCY_LEVEL);
+    }
+    
+    
+    /**
+     * @param size max number of resource this cache contains
+     * @param concurrencyLevel estimated number of concurrently writing threads
+     */
+    public ConcurrentBitmapCache(int size, int concurrencyLevel) {
+        if (size <= 0 || concurrencyLevel <= 0) 
+            throw new IllegalArgumentException("size and concurrencyLevel must be positive");
+        
+        int n = 1;
+        while (n < concurrencyLevel && n < size) {
+            n <<= 1;
+        }
+        
+        mSegmentMask = n - 1;
+        mSegments = new Segment[n];
+        for (int i = 0; i < n; i++) {
+            // spread the remainder so that the total capacity is exactly size
+            mSegments[i] = new Segment(size / n + (i < size % n ? 1 : 0));
+        }
+        mMap = new ConcurrentHashMap<String, CacheEntry>(size, 0.75f, n);
+    }
+    
+    
+    @Override
+    public boolean exists(String key) {
+        return mMap.containsKey(key);
+    }
+
+    
+    @Override
+    public Bitmap loadData(String key) {
+        CacheEntry e = mMap.get(key);
+        if (e == null) {
+            return null;
+        }
+        
+        e.nUsed++; // racy, only used for stats
+        e.timestamp = System.currentTimeMillis();
+        
+        Segment s = segmentFor(key);
+        if (s.lock.tryLock()) {
+            try {
+                if (e.linked) {
+                    s.unlink(e);
+                    s.linkLast(e);
+                }
+            }
+            finally {
+                s.lock.unlock();
+            }
+        }
+        return e.data;
+    }
+
+    
+    @Override
+    public Bitmap peekData(String key) {
+        return loadData(key);
+    }
+
+    
+    @Override
+    public void storeData(String key, Object data) {
+        Segment s = segmentFor(key);
+        s.lock.lock();
+        try {
+            if (mMap.containsKey(key)) {
+                return;
+            }
+            
+            //if the number exceeds, move an item out 
+            //to prevent the storage from increasing indefinitely.
+            while (s.count >= s.maxSize && s.head != null) {
+                CacheEntry out = s.head;
+                s.unlink(out);
+                mMap.remove(out.key, out);
+                if (mPool != null) 
+                    mPool.put(out.data);
+                if(DEBUG) Log.d(TAG, out.key + " is evicted from the cache");
+            }
+            
+            CacheEntry e = new CacheEntry(key, (Bitmap) data);
+            e.nUsed = 1;
+            e.timestamp = System.currentTimeMillis();
+            s.linkLast(e);
+            mMap.put(key, e);
+        }
+        finally {
+            s.lock.unlock();
+        }
+    }
+
+    
+    @Override
+    public void invalidate(String key) {
+        Segment s = segmentFor(key);
+        s.lock.lock();
+        try {
+            CacheEntry e = mMap.remove(key);
+            if (e != null && e.linked) {
+                s.unlink(e);
+            }
+        }
+        finally {
+            s.lock.unlock();
+        }
+        if(DEBUG) Log.d(TAG, key + " is invalidated from the cache");
+    }
+
+    
+    @Override
+    public void clear() {
+        for (Segment s : mSegments) {
+            s.lock.lock();
+            try {
+                s.clear();
+            }
+            finally {
+                s.lock.unlock();
+            }
+        }
+    }
+    
+    
+    @Override
+    public void trimMemory(int level) {
+        if (level >= TRIM_MEMORY_COMPLETE) {
+            clear();
+            return;
+        }
+        
+        for (Segment s : mSegments) {
+            s.lock.lock();
+            try {
+                int target = TrimPolicy.trimmedSize(s.count, level);
+                while (s.count > target) {
+                    CacheEntry out = s.head;
+                    s.unlink(out);
+                    mMap.remove(out.key, out);
+                }
+            }
+            finally {
+                s.lock.unlock();
+            }
+        }
+    }
+    
+    
+    /**
+     * Let bitmaps evicted for lack of room go to the pool for reuse by the decoder. 
+     * Only do this when the cache holds more bitmaps than can be on screen at a time, 
+     * since a pooled bitmap gets overwritten. 
+     * @param pool null to disable
+     */
+    public void setBitmapPool(BitmapPool pool) {
+        mPool = pool;
+    }
+    
+    
+    /**
+     * Number of bitmaps currently cached
+     */
+    public int size() {
+        return mMap.size();
+    }
+    
+    
+    ////////PRIVATE
+    private Segment segmentFor(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return mSegments[h & mSegmentMask];
+    }
+    
+    
+    private final ConcurrentHashMap<String, CacheEntry> mMap;
+    private final Segment[] mSegments;
+    private final int mSegmentMask;
+    private volatile BitmapPool mPool;
+}
@@ -0,0 +1,72 @@
+//  Copyright 2012 Zonghai Li. All rights reserved.
+//
+//  Redistribution and use in binary and source forms, with or without modification,
+//  are permitted for any project, commercial or otherwise, provided that the
+//  following conditions are met:
+//  
+//  Redistributions in binary form must display the copyright notice in the About
+//  view, website, and/or documentation.
+//  
+//  Redistributions of source code must retain the copyright notice, this list of
+//  conditions, and the following disclaimer.
+//
+//  THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+//  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+//  PARTICULAR PURPOSE AND NONINFRINGEMENT OF THIRD PARTY RIGHTS. IN NO EVENT SHALL THE
+//  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+//  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+//  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THIS SOFTWARE.
+
+
+package httpimage;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+
+/**
+ * Creates the DBImageTable schema, for DataProvider and SQLitePersistence.
+ * 
+ * @author zonghai@gmail.com
+ */
+class DBImageOpenHelper extends SQLiteOpenHelper {
+
+    private static final String TAG = "DBImageOpenHelper";
+    
+    private static final int DATABASE_VERSION = 2;
+    
+    
+    DBImageOpenHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+    }
+    
+    
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + DBImageTable.TABLE + " ("
+                + DBImageTable._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + DBImageTable.NAME + " TEXT NOT NULL,"
+                + DBImageTable.DATA + " BLOB,"
+                + DBImageTable.PATH + " TEXT,"
+                + DBImageTable.SIZE + " INTEGER,"
+                + DBImageTable.TIMESTAMP + " INTEGER,"
+                + DBImageTable.NUSE + " INTEGER"
+                + ");");
+        db.execSQL("CREATE UNIQUE INDEX " + DBImageTable.TABLE + "_name ON " 
+                + DBImageTable.TABLE + " (" + DBImageTable.NAME + ");");
+        // pruning walks the rows least recently used first
+        db.execSQL("CREATE INDEX " + DBImageTable.TABLE + "_timestamp ON " 
+                + DBImageTable.TABLE + " (" + DBImageTable.TIMESTAMP + ");");
+    }
+    
+    
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // it's a cache, start over
+        Log.w(TAG, "upgrading database from version " + oldVersion + " to " + newVersion);
+        db.execSQL("DROP TABLE IF EXISTS " + DBImageTable.TABLE);
+        onCreate(db);
+    }
+}
@@ -31,11 +31,21 @@ import android.provider.BaseColumns;
 public class DBImageTable implements BaseColumns {
     
     
+    /**
+     * Authority of the DataProvider, to be declared in the application manifest
+     */
+    public static final String AUTHORITY = "httpimage.provider.DataProvider";
+    
+    /**
+     * Name of the table
+     */
+    public static final String TABLE = "thumbnail";
+    
     /**
      * The content:// style URL for this table
      */
     public static final Uri CONTENT_URI
-            = Uri.parse("httpimage.provider.DataProvider/thumbnail");
+            = Uri.parse("content://" + AUTHORITY + "/" + TABLE);
     
     /**
      * The name of the image
@@ -50,6 +60,14 @@ public class DBImageTable implements BaseColumns {
     public static final String DATA = "Data";
 
     
+    /**
+     * Absolute path of the file holding the image data when it's too large to be 
+     * stored in the table, in which case DATA is null
+     * <P>Type: TEXT</P>
+     */
+    public static final String PATH = "Path";
+
+    
     /**
      * size of the image after being compressed.
      * <P>Type: INTEGER (long)</P>
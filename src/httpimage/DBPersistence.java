@@ -21,74 +21,199 @@
 package httpimage;
 
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.net.Uri;
+import android.os.RemoteException;
 import android.util.Log;
 
 
 /**
- * DB implementation of persistent storage.
+ * DB implementation of persistent storage, on top of DataProvider.
+ * 
+ * <p>
+ * Reads record the access time and use count of the row. They are written in batches, 
+ * a single transaction per ACCESS_BATCH_SIZE reads, or when flush() is called. 
+ * 
+ * <p>
+ * When given a budget, the least recently used rows are deleted in bulk once the total 
+ * size exceeds it, down to PRUNE_TARGET of the budget.
+ * 
+ * <p>
+ * Images larger than the external threshold are stored in files under the cache 
+ * directory, referenced by the PATH column, and streamed to the decoder: a blob read 
+ * from the table is copied whole through a CursorWindow, which is limited to 1-2MB.
+ * 
+ * <p>
+ * Blobs start with the length and CRC32 of the data (see EntryChecksum). A row that 
+ * fails the check when loaded is deleted and reported as missing, so that it is 
+ * fetched again.
  * 
  * @author zonghai@gmail.com
  */
-public class DBPersistence implements BitmapCache{
+public class DBPersistence implements DecodingBitmapCache{
     
     private static final String TAG = "DBPersistence";
     private static final boolean DEBUG = false;
     
+    public static final long UNBOUNDED = -1;
+    
+    private static final String BLOB_DIR = "httpimage_blobs";
+    
+    private static final int ACCESS_BATCH_SIZE = 32;
+    private static final float PRUNE_TARGET = 0.9f;
+    
+    // check the total size each time this fraction of the budget has been stored
+    private static final int PRUNE_CHECK_DIVISOR = 16;
+    
     
     public DBPersistence(Context context) {
+        this(context, UNBOUNDED);
+    }
+    
+    
+    /**
+     * @param context
+     * @param maxBytes budget for the stored data, or UNBOUNDED
+     */
+    public DBPersistence(Context context, long maxBytes) {
         this.mContext = context;
+        this.mMaxSize = maxBytes;
+        this.mBlobs = new BlobFileStore(new File(context.getCacheDir(), BLOB_DIR));
+        // the table may be over budget already
+        this.mStoredSinceCheck = maxBytes;
+    }
+    
+    
+    /**
+     * Decode into bitmaps taken from the pool when possible.
+     * @param pool null to disable
+     */
+    public void setBitmapPool (BitmapPool pool) {
+        mBitmapPool = pool;
+    }
+    
+    
+    /**
+     * Size above which images are stored in files rather than in the table. 
+     * @param bytes
+     */
+    public void setExternalThreshold (int bytes) {
+        mExternalThreshold = bytes;
     }
     
     
     public boolean exists(String key) {
-        //TODO
-        return false;
+        Cursor c = mContext.getContentResolver().query(uriOf(key), 
+                new String[] {DBImageTable._ID}, null, null, null);
+        try {
+            return c != null && c.getCount() > 0;
+        }
+        finally {
+            if (c != null) {
+                c.close();
+            }
+        }
     }
 
 
     public Bitmap loadData(String key) {
+        return loadData(key, DecodeOptions.DEFAULT);
+    }
+
+    
+    public Bitmap loadData(String key, DecodeOptions options) {
         Bitmap bitmap = null;
+        boolean corrupted = false;
+        int nUsed = 0;
         
-        Uri image = Uri.withAppendedPath(DBImageTable.CONTENT_URI, key);
+        Uri image = uriOf(key);
         if (DEBUG) Log.d(TAG, "loaddata " + image.toString());
         String[] returnCollums = new String[] {
             DBImageTable.DATA,
+            DBImageTable.PATH,
+            DBImageTable.NUSE,
         };
+        String path = null;
         
         Cursor c = null;
         try {
             ContentResolver cr = mContext.getContentResolver();
             c = cr.query(image, returnCollums, null, null, null);
-            if (DEBUG) Log.d(TAG, "count=" + c.getCount());
-            if(c.getCount() < 1) {
+            // NAME is unique
+            if(c == null || !c.moveToFirst()) {
                 return null;
             }
-            if(c .getCount() > 1) {
-                throw new RuntimeException("shouldn't reach here, make sure the NAME collumn is unique: " + key);
-            }
-            c.moveToFirst();
-            byte[] binary = c.getBlob(c.getColumnIndex(DBImageTable.DATA));
+            path = c.getString(c.getColumnIndex(DBImageTable.PATH));
+            nUsed = c.getInt(c.getColumnIndex(DBImageTable.NUSE));
+            byte[] binary = path != null ? null : c.getBlob(c.getColumnIndex(DBImageTable.DATA));
             
             if( binary != null ) {
-                bitmap = BitmapUtil.decodeByteArray(binary, HttpImageManager.DECODING_MAX_PIXELS_DEFAULT);
-                if(bitmap == null) {
-                     // something wrong with the persistent data, can't be decoded to bitmap.
-                    throw new RuntimeException("data from db can't be decoded to bitmap");
+                int offset = EntryChecksum.dataOffset(binary);
+                if (offset != EntryChecksum.CORRUPTED) {
+                    bitmap = BitmapUtil.decodeByteArray(binary, offset, binary.length - offset, 
+                            options, mBitmapPool);
+                }
+                
+                // a verified blob that doesn't decode is left alone, the decoder may just be out of memory.
+                if (offset == EntryChecksum.CORRUPTED || (bitmap == null && offset == 0)) {
+                    corrupted = true;
                 }
             }
-            return bitmap;
         }
         finally{
             if(c != null){
                 c.close();
             }
         }
+        
+        if (path != null) {
+            try {
+                bitmap = mBlobs.decode(path, options, mBitmapPool);
+            }
+            catch (FileNotFoundException e) {
+                // the cache directory was cleaned up
+                if (DEBUG) Log.d(TAG, "file gone: " + path);
+                invalidate(key);
+                return null;
+            }
+            catch (IOException e) {
+                Log.w(TAG, e);
+                corrupted = true;
+            }
+        }
+        
+        if (corrupted) {
+            // something wrong with the persistent data, drop it so that it's fetched again.
+            Log.w(TAG, "corrupted entry dropped: " + key);
+            synchronized (this) {
+                mCorruptionCount++;
+            }
+            invalidate(key);
+            return null;
+        }
+        
+        if (bitmap != null) {
+            recordAccess(key, nUsed);
+        }
+        return bitmap;
+    }
+
+    
+    public Bitmap peekData(String key) {
+        return null; // only available through a DB query
     }
 
     
@@ -96,30 +221,209 @@ public class DBPersistence implements BitmapCache{
         
         byte[] ba = (byte[])data;
         if (ba != null) {
+            int size = EntryChecksum.HEADER_SIZE + ba.length;
         
             ContentValues values = new ContentValues();
             values.put(DBImageTable.NAME, key);
-            values.put(DBImageTable.DATA, ba);
-            values.put(DBImageTable.SIZE, ba.length);
+            if (ba.length > mExternalThreshold) {
+                try {
+                    values.put(DBImageTable.PATH, mBlobs.write(key, ba).getAbsolutePath());
+                    values.putNull(DBImageTable.DATA);
+                } 
+                catch (IOException e) {
+                    Log.e(TAG, "error storing " + key, e);
+                    return;
+                }
+            }
+            else {
+                mBlobs.delete(key); // in case it was stored as a file before
+                values.put(DBImageTable.DATA, EntryChecksum.wrap(ba));
+                values.putNull(DBImageTable.PATH);
+            }
+            values.put(DBImageTable.SIZE, size);
             values.put(DBImageTable.NUSE, 1);
             values.put(DBImageTable.TIMESTAMP, System.currentTimeMillis());
             mContext.getContentResolver().insert(DBImageTable.CONTENT_URI, values);
+            
+            if (mMaxSize != UNBOUNDED) {
+                boolean check;
+                synchronized (this) {
+                    mStoredSinceCheck += size;
+                    check = mStoredSinceCheck >= mMaxSize / PRUNE_CHECK_DIVISOR;
+                    if (check) 
+                        mStoredSinceCheck = 0;
+                }
+                if (check) 
+                    prune();
+            }
         }
     }
 
     
     @Override
     public void clear() {
-        //TODO
+        synchronized (this) {
+            mPendingAccesses.clear();
+        }
+        mContext.getContentResolver().delete(DBImageTable.CONTENT_URI, null, null);
+        mBlobs.clear();
     }
 
 
     @Override
     public void invalidate(String key) {
-        //TODO:
+        synchronized (this) {
+            mPendingAccesses.remove(key);
+        }
+        mContext.getContentResolver().delete(uriOf(key), null, null);
+        mBlobs.delete(key);
+    }
+    
+    
+    /**
+     * Write the recorded accesses now, to be called when the application goes to the 
+     * background. This is a blocking call.
+     */
+    public void flush() {
+        ArrayList<ContentProviderOperation> ops;
+        synchronized (this) {
+            if (mPendingAccesses.isEmpty()) 
+                return;
+            
+            ops = new ArrayList<ContentProviderOperation>(mPendingAccesses.size());
+            for (Map.Entry<String, ContentValues> e : mPendingAccesses.entrySet()) {
+                ops.add(ContentProviderOperation.newUpdate(uriOf(e.getKey()))
+                        .withValues(e.getValue()).build());
+            }
+            mPendingAccesses.clear();
+        }
+        
+        try {
+            mContext.getContentResolver().applyBatch(DBImageTable.AUTHORITY, ops);
+            if (DEBUG) Log.d(TAG, "recorded " + ops.size() + " accesses");
+        } 
+        catch (RemoteException e) {
+            Log.w(TAG, e);
+        } 
+        catch (OperationApplicationException e) {
+            Log.w(TAG, e);
+        }
+    }
+    
+    
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+    
+    
+    /**
+     * Number of entries found damaged, and dropped, when loaded
+     */
+    public synchronized int getCorruptionCount() {
+        return mCorruptionCount;
+    }
+
+
+    @Override
+    public void trimMemory(int level) {
+        // nothing held in memory, but the application is going away
+        if (level >= TRIM_MEMORY_BACKGROUND) 
+            flush();
+    }
+    
+    
+    ////////PRIVATE
+    private static Uri uriOf(String key) {
+        return Uri.withAppendedPath(DBImageTable.CONTENT_URI, key);
+    }
+    
+    
+    private void recordAccess(String key, int nUsed) {
+        boolean full;
+        synchronized (this) {
+            ContentValues values = mPendingAccesses.get(key);
+            if (values == null) {
+                values = new ContentValues();
+                mPendingAccesses.put(key, values);
+            } 
+            else {
+                // the row is behind the pending accesses
+                nUsed = values.getAsInteger(DBImageTable.NUSE);
+            }
+            values.put(DBImageTable.NUSE, nUsed + 1);
+            values.put(DBImageTable.TIMESTAMP, System.currentTimeMillis());
+            full = mPendingAccesses.size() >= ACCESS_BATCH_SIZE;
+        }
+        
+        if (full) 
+            flush();
+    }
+    
+    
+    /* Delete the least recently used rows in bulk, if over budget. */
+    private void prune() {
+        // access times must be up to date
+        flush();
+        
+        ContentResolver cr = mContext.getContentResolver();
+        long total = 0;
+        Cursor c = cr.query(DBImageTable.CONTENT_URI, 
+                new String[] {"sum(" + DBImageTable.SIZE + ")"}, null, null, null);
+        try {
+            if (c != null && c.moveToFirst()) 
+                total = c.getLong(0);
+        }
+        finally {
+            if (c != null) 
+                c.close();
+        }
+        
+        if (total <= mMaxSize) 
+            return;
+        
+        // find the access time up to which the rows free enough
+        long excess = total - (long)(mMaxSize * PRUNE_TARGET);
+        long freed = 0;
+        long cutoff = -1;
+        ArrayList<String> paths = new ArrayList<String>();
+        c = cr.query(DBImageTable.CONTENT_URI, 
+                new String[] {DBImageTable.SIZE, DBImageTable.TIMESTAMP, DBImageTable.PATH}, null, null, 
+                DBImageTable.TIMESTAMP + " ASC");
+        try {
+            // all the rows up to the cutoff are deleted, so walk them all for their files
+            while (c != null && c.moveToNext()) {
+                long timestamp = c.getLong(1);
+                if (freed >= excess && timestamp != cutoff) 
+                    break;
+                freed += c.getLong(0);
+                cutoff = timestamp;
+                if (!c.isNull(2)) 
+                    paths.add(c.getString(2));
+            }
+        }
+        finally {
+            if (c != null) 
+                c.close();
+        }
+        
+        if (cutoff >= 0) {
+            int count = cr.delete(DBImageTable.CONTENT_URI, DBImageTable.TIMESTAMP + "<=?", 
+                    new String[] {Long.toString(cutoff)});
+            for (String path : paths) {
+                new File(path).delete();
+            }
+            if (DEBUG) Log.d(TAG, "pruned " + count + " rows, " + total + " bytes stored");
+        }
     }
     
 
     private Context mContext;
+    private BitmapPool mBitmapPool;
+    private long mMaxSize;
+    private BlobFileStore mBlobs;
+    private int mExternalThreshold = BlobFileStore.DEFAULT_THRESHOLD;
+    private long mStoredSinceCheck;
+    private int mCorruptionCount;
+    private Map<String, ContentValues> mPendingAccesses = new LinkedHashMap<String, ContentValues>();
 
 }
@@ -0,0 +1,167 @@
+//  Copyright 2012 Zonghai Li. All rights reserved.
+//
+//  Redistribution and use in binary and source forms, with or without modification,
+//  are permitted for any project, commercial or otherwise, provided that the
+//  following conditions are met:
+//  
+//  Redistributions in binary form must display the copyright notice in the About
+//  view, website, and/or documentation.
+//  
+//  Redistributions of source code must retain the copyright notice, this list of
+//  conditions, and the following disclaimer.
+//
+//  THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+//  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+//  PARTICULAR PURPOSE AND NONINFRINGEMENT OF THIRD PARTY RIGHTS. IN NO EVENT SHALL THE
+//  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+//  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+//  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THIS SOFTWARE.
+
+
+package httpimage;
+
+import java.util.ArrayList;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.Log;
+
+
+/**
+ * Content provider backing DBPersistence, to be declared in the application manifest:
+ * 
+ * <pre>
+ * &lt;provider android:name="httpimage.DataProvider"
+ *     android:authorities="httpimage.provider.DataProvider"
+ *     android:exported="false" /&gt;
+ * </pre>
+ * 
+ * Names are unique, a row inserted under an existing name replaces it. A batch of 
+ * operations is applied in a single transaction.
+ * 
+ * @author zonghai@gmail.com
+ */
+public class DataProvider extends ContentProvider {
+
+    private static final String TAG = "DataProvider";
+    private static final boolean DEBUG = false;
+    
+    private static final String DATABASE_NAME = "httpimage.db";
+    
+    private static final int IMAGES = 1;
+    private static final int IMAGE_NAME = 2;
+    
+    private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+    
+    static {
+        sUriMatcher.addURI(DBImageTable.AUTHORITY, DBImageTable.TABLE, IMAGES);
+        sUriMatcher.addURI(DBImageTable.AUTHORITY, DBImageTable.TABLE + "/*", IMAGE_NAME);
+    }
+    
+    
+    private DBImageOpenHelper mHelper;
+    
+    
+    @Override
+    public boolean onCreate() {
+        // the database is opened on first use
+        mHelper = new DBImageOpenHelper(getContext(), DATABASE_NAME);
+        return true;
+    }
+    
+    
+    @Override
+    public String getType(Uri uri) {
+        switch (sUriMatcher.match(uri)) {
+        case IMAGES:
+            return "vnd.android.cursor.dir/vnd.httpimage." + DBImageTable.TABLE;
+        case IMAGE_NAME:
+            return "vnd.android.cursor.item/vnd.httpimage." + DBImageTable.TABLE;
+        default:
+            throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+    }
+    
+    
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        qb.setTables(DBImageTable.TABLE);
+        
+        String where = whereOf(uri, selection);
+        return qb.query(mHelper.getReadableDatabase(), projection, where, selectionArgs, null, null, sortOrder);
+    }
+    
+    
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        if (sUriMatcher.match(uri) != IMAGES) {
+            throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+        
+        long rowId = mHelper.getWritableDatabase().replace(DBImageTable.TABLE, DBImageTable.DATA, values);
+        if (rowId < 0) {
+            throw new SQLException("Failed to insert row into " + uri);
+        }
+        if (DEBUG) Log.d(TAG, "inserted " + values.getAsString(DBImageTable.NAME));
+        return Uri.withAppendedPath(DBImageTable.CONTENT_URI, values.getAsString(DBImageTable.NAME));
+    }
+    
+    
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        String where = whereOf(uri, selection);
+        return mHelper.getWritableDatabase().update(DBImageTable.TABLE, values, where, selectionArgs);
+    }
+    
+    
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        String where = whereOf(uri, selection);
+        int count = mHelper.getWritableDatabase().delete(DBImageTable.TABLE, where, selectionArgs);
+        if (DEBUG) Log.d(TAG, "deleted " + count + " rows");
+        return count;
+    }
+    
+    
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations) 
+            throws OperationApplicationException {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            return results;
+        }
+        finally {
+            db.endTransaction();
+        }
+    }
+    
+    
+    ////////PRIVATE
+    private static String whereOf(Uri uri, String selection) {
+        switch (sUriMatcher.match(uri)) {
+        case IMAGES:
+            return selection;
+        case IMAGE_NAME:
+            String name = DBImageTable.NAME + "=" + DatabaseUtils.sqlEscapeString(uri.getLastPathSegment());
+            return TextUtils.isEmpty(selection) ? name : name + " AND (" + selection + ")";
+        default:
+            throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+    }
+    
+}
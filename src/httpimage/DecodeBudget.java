@@ -0,0 +1,114 @@
+//  Copyright 2012 Zonghai Li. All rights reserved.
+//
+//  Redistribution and use in binary and source forms, with or without modification,
+//  are permitted for any project, commercial or otherwise, provided that the
+//  following conditions are met:
+//  
+//  Redistributions in binary form must display the copyright notice in the About
+//  view, website, and/or documentation.
+//  
+//  Redistributions of source code must retain the copyright notice, this list of
+//  conditions, and the following disclaimer.
+//
+//  THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+//  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+//  PARTICULAR PURPOSE AND NONINFRINGEMENT OF THIRD PARTY RIGHTS. IN NO EVENT SHALL THE
+//  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+//  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+//  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THIS SOFTWARE.
+
+
+package httpimage;
+
+import android.util.Log;
+
+
+/**
+ * Admission control for decoding: the pixel memory of the decodes in progress is kept 
+ * under a budget, estimated from the bounds pass. A decode that would exceed it waits 
+ * for others to complete instead of running into an OutOfMemoryError. A decode larger 
+ * than the whole budget still runs, alone.
+ * 
+ * <p>
+ * Decodes are admitted in the order they arrive: while one waits for room, those behind 
+ * it wait too, even if they would fit, so that a large decode isn't starved by a stream 
+ * of small ones.
+ * 
+ * @author zonghai@gmail.com
+ */
+public class DecodeBudget {
+
+    private static final String TAG = "DecodeBudget";
+    private static final boolean DEBUG = false;
+    
+    
+    /**
+     * @param maxBytes max pixel memory of the decodes in progress
+     */
+    public DecodeBudget(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+    
+    
+    /**
+     * Wait until bytes fit in the budget, and take them. 
+     */
+    public synchronized void acquire(long bytes) {
+        boolean interrupted = false;
+        boolean waited = false;
+        long ticket = mNextTicket++;
+        while (ticket != mNowServing || (mInFlight > 0 && mInFlight + bytes > mMaxBytes)) {
+            waited = true;
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        
+        mInFlight += bytes;
+        mNowServing++;
+        notifyAll(); // the next in line may fit as well
+        if (waited) {
+            mWaitCount++;
+            if (DEBUG) Log.d(TAG, "admitted " + bytes + " bytes after waiting, " + mInFlight + " in flight");
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    
+    public synchronized void release(long bytes) {
+        mInFlight -= bytes;
+        notifyAll();
+    }
+    
+    
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+    
+    
+    /**
+     * Pixel memory of the decodes in progress
+     */
+    public synchronized long getInFlightBytes() {
+        return mInFlight;
+    }
+    
+    
+    /**
+     * Number of decodes that had to wait for room
+     */
+    public synchronized int getWaitCount() {
+        return mWaitCount;
+    }
+    
+    
+    private final long mMaxBytes;
+    private long mInFlight;
+    private long mNextTicket;
+    private long mNowServing;
+    private int mWaitCount;
+}
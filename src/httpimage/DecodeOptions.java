@@ -0,0 +1,127 @@
+//  Copyright 2012 Zonghai Li. All rights reserved.
+//
+//  Redistribution and use in binary and source forms, with or without modification,
+//  are permitted for any project, commercial or otherwise, provided that the
+//  following conditions are met:
+//  
+//  Redistributions in binary form must display the copyright notice in the About
+//  view, website, and/or documentation.
+//  
+//  Redistributions of source code must retain the copyright notice, this list of
+//  conditions, and the following disclaimer.
+//
+//  THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+//  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+//  PARTICULAR PURPOSE AND NONINFRINGEMENT OF THIRD PARTY RIGHTS. IN NO EVENT SHALL THE
+//  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+//  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+//  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THIS SOFTWARE.
+
+package httpimage;
+
+import android.graphics.Bitmap;
+
+/**
+ * How stored image data is to be decoded: the size it's going to be displayed at, if 
+ * known, the max number of pixels of the result and its pixel format. 
+ * 
+ * <p>
+ * The image is subsampled by the largest power of 2 that keeps it at least as large as 
+ * the target size, so a photo shown as a thumbnail isn't decoded at full resolution. 
+ * 
+ * <p>
+ * With CONFIG_AUTO, images without alpha (JPEG, and PNG or WebP whose header says so) are 
+ * decoded to RGB_565, at half the memory of ARGB_8888.
+ * 
+ * @author zonghai@gmail.com
+ */
+public class DecodeOptions {
+
+    public static final int UNCONSTRAINED = -1;
+    
+    /** Pixel format picked per image, RGB_565 when it has no alpha, ARGB_8888 otherwise */
+    public static final Bitmap.Config CONFIG_AUTO = null;
+    
+    /** Default pixel budget, see HttpImageManager.setDecodingPixelConstraint() */
+    public static final int DEFAULT_MAX_NUM_OF_PIXELS = 600 * 800;
+    
+    /** No target size, within the default pixel budget, in ARGB_8888 */
+    public static final DecodeOptions DEFAULT = new DecodeOptions(UNCONSTRAINED, UNCONSTRAINED, 
+            DEFAULT_MAX_NUM_OF_PIXELS);
+    
+    
+    /**
+     * @param targetWidth width to display at, or UNCONSTRAINED
+     * @param targetHeight height to display at, or UNCONSTRAINED
+     * @param maxNumOfPixels max pixels of the decoded bitmap, or UNCONSTRAINED
+     */
+    public DecodeOptions(int targetWidth, int targetHeight, int maxNumOfPixels) {
+        this(targetWidth, targetHeight, maxNumOfPixels, Bitmap.Config.ARGB_8888);
+    }
+    
+    
+    /**
+     * @param targetWidth width to display at, or UNCONSTRAINED
+     * @param targetHeight height to display at, or UNCONSTRAINED
+     * @param maxNumOfPixels max pixels of the decoded bitmap, or UNCONSTRAINED
+     * @param config preferred pixel format, or CONFIG_AUTO
+     */
+    public DecodeOptions(int targetWidth, int targetHeight, int maxNumOfPixels, Bitmap.Config config) {
+        mTargetWidth = targetWidth;
+        mTargetHeight = targetHeight;
+        mMaxNumOfPixels = maxNumOfPixels;
+        mConfig = config;
+    }
+    
+    
+    public int getTargetWidth() {
+        return mTargetWidth;
+    }
+    
+    
+    public int getTargetHeight() {
+        return mTargetHeight;
+    }
+    
+    
+    public int getMaxNumOfPixels() {
+        return mMaxNumOfPixels;
+    }
+    
+    
+    /**
+     * Preferred pixel format, or CONFIG_AUTO
+     */
+    public Bitmap.Config getConfig() {
+        return mConfig;
+    }
+    
+    
+    public boolean hasTargetSize() {
+        return mTargetWidth > 0 || mTargetHeight > 0;
+    }
+    
+    
+    /**
+     * Load from a storage, decoding as specified if it supports it.
+     */
+    public static Bitmap load(BitmapCache storage, String key, DecodeOptions options) {
+        if (storage instanceof DecodingBitmapCache) {
+            return ((DecodingBitmapCache)storage).loadData(key, options);
+        }
+        return storage.loadData(key);
+    }
+    
+    
+    @Override
+    public String toString() {
+        return "DecodeOptions[" + mTargetWidth + "x" + mTargetHeight + ", max " + mMaxNumOfPixels 
+                + ", " + (mConfig == CONFIG_AUTO ? "auto" : mConfig.name()) + "]";
+    }
+    
+    
+    private final int mTargetWidth;
+    private final int mTargetHeight;
+    private final int mMaxNumOfPixels;
+    private final Bitmap.Config mConfig;
+}
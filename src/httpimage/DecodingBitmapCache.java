@@ -0,0 +1,40 @@
+//  Copyright 2012 Zonghai Li. All rights reserved.
+//
+//  Redistribution and use in binary and source forms, with or without modification,
+//  are permitted for any project, commercial or otherwise, provided that the
+//  following conditions are met:
+//  
+//  Redistributions in binary form must display the copyright notice in the About
+//  view, website, and/or documentation.
+//  
+//  Redistributions of source code must retain the copyright notice, this list of
+//  conditions, and the following disclaimer.
+//
+//  THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+//  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+//  PARTICULAR PURPOSE AND NONINFRINGEMENT OF THIRD PARTY RIGHTS. IN NO EVENT SHALL THE
+//  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+//  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+//  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THIS SOFTWARE.
+
+package httpimage;
+
+import android.graphics.Bitmap;
+
+
+/**
+ * Storage of encoded images, which can decode them to the size they are displayed at. 
+ * loadData(key) decodes with DecodeOptions.DEFAULT.
+ * 
+ * @author zonghai@gmail.com
+ */
+public interface DecodingBitmapCache extends BitmapCache {
+
+    /**
+     * Retrieve the bitmap decoded as specified, return null means cache miss
+     * @param key
+     * @param options
+     * @throws OutOfMemoryError not taken as a corrupted entry, the caller may free memory and retry
+     */
+    public Bitmap loadData(String key, DecodeOptions options);
+}
@@ -0,0 +1,510 @@
+//  Copyright 2012 Zonghai Li. All rights reserved.
+//
+//  Redistribution and use in binary and source forms, with or without modification,
+//  are permitted for any project, commercial or otherwise, provided that the
+//  following conditions are met:
+//  
+//  Redistributions in binary form must display the copyright notice in the About
+//  view, website, and/or documentation.
+//  
+//  Redistributions of source code must retain the copyright notice, this list of
+//  conditions, and the following disclaimer.
+//
+//  THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+//  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+//  PARTICULAR PURPOSE AND NONINFRINGEMENT OF THIRD PARTY RIGHTS. IN NO EVENT SHALL THE
+//  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+//  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+//  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THIS SOFTWARE.
+
+
+package httpimage;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+
+/**
+ * In-memory index of the files of a disk cache: their sizes, in the order of last access.
+ * 
+ * <p>
+ * Every change is appended to a journal file in the cache directory, one record per line:
+ * <pre>
+ *     S key size    (stored)
+ *     A key         (accessed)
+ *     R key         (removed)
+ * </pre>
+ * At startup the journal is replayed, so existence, sizes and the LRU order are known 
+ * without touching the cached files. A record cut short by a crash ends the replay; what
+ * was recovered is then checked against a listing of the directory, and the journal is 
+ * rewritten from it. Once the journal holds many more records than there are files, it 
+ * is compacted the same way. The directory is only scanned when there is no journal.
+ * Scans descend into shard subdirectories, named after two hex digits, so that sharded 
+ * layouts are indexed as well; keys are file names.
+ * 
+ * <p>
+ * Store and remove records are flushed right away; access records are buffered until the
+ * next save(). Not thread safe, callers must synchronize.
+ * 
+ * @author zonghai@gmail.com
+ */
+public class DiskCacheIndex {
+    
+    private static final String TAG = "DiskCacheIndex";
+    private static final boolean DEBUG = false;
+    
+    public static final String JOURNAL_FILE_NAME = ".journal";
+    
+    private static final String MAGIC = "httpimage.journal.1";
+    private static final int COMPACT_THRESHOLD = 2000;
+    
+    
+    public DiskCacheIndex(File dir) {
+        mDir = dir;
+        mJournalFile = new File(dir, JOURNAL_FILE_NAME);
+    }
+    
+    
+    /**
+     * Replay the journal, scan the directory if there's none.
+     */
+    public void load() {
+        closeWriter();
+        mEntries.clear();
+        mTotalSize = 0;
+        mRedundantCount = 0;
+        
+        boolean exists = mJournalFile.exists();
+        boolean complete = exists && replayJournal();
+        if (!complete) {
+            if (exists) 
+                reconcileWithDirectory(); // keep what was recovered, in its order
+            else 
+                scanDirectory();
+            rewriteJournal();
+        }
+    }
+    
+    
+    public boolean contains(String key) {
+        return mEntries.containsKey(key);
+    }
+    
+    
+    /**
+     * Size of the file, -1 if the key is not indexed. Doesn't change the LRU order.
+     */
+    public long sizeOf(String key) {
+        Long size = mEntries.get(key);
+        return size == null ? -1 : size;
+    }
+    
+    
+    /**
+     * Mark the key as just used.
+     * @return false if the key is not indexed
+     */
+    public boolean touch(String key) {
+        if (!moveToEnd(key)) {
+            return false;
+        }
+        mRedundantCount++;
+        append("A " + key, false);
+        return true;
+    }
+    
+    
+    public void put(String key, long size) {
+        Long old = mEntries.remove(key); // a store moves the key to the end
+        mEntries.put(key, size);
+        if (old != null) {
+            mTotalSize -= old;
+            mRedundantCount++;
+        }
+        mTotalSize += size;
+        append("S " + key + " " + size, true);
+    }
+    
+    
+    public void remove(String key) {
+        Long old = mEntries.remove(key);
+        if (old != null) {
+            mTotalSize -= old;
+            mRedundantCount += 2; // the removal and the store it cancels
+            append("R " + key, true);
+        }
+    }
+    
+    
+    public void clear() {
+        mEntries.clear();
+        mTotalSize = 0;
+        rewriteJournal();
+    }
+    
+    
+    public long getTotalSize() {
+        return mTotalSize;
+    }
+    
+    
+    public int size() {
+        return mEntries.size();
+    }
+    
+    
+    /**
+     * Least recently used keys to remove for the total size to be no more than maxSize.
+     * The index is left as is: delete the files first, then remove() the keys, so that a 
+     * crash in between never leaves a file the journal has dropped.
+     */
+    public List<String> evictionCandidates(long maxSize) {
+        List<String> out = new ArrayList<String>();
+        long total = mTotalSize;
+        Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+        while (total > maxSize && it.hasNext()) {
+            Map.Entry<String, Long> e = it.next();
+            total -= e.getValue();
+            out.add(e.getKey());
+        }
+        return out;
+    }
+    
+    
+    /**
+     * Take least recently used keys out of the index until the total size is no more 
+     * than maxSize.
+     * @return the keys removed, whose files are to be deleted
+     */
+    public List<String> evict(long maxSize) {
+        List<String> out = evictionCandidates(maxSize);
+        for (String key : out) {
+            mTotalSize -= mEntries.remove(key);
+            mRedundantCount += 2;
+            append("R " + key, false);
+        }
+        flushWriter();
+        return out;
+    }
+    
+    
+    /**
+     * Flush buffered records, and compact the journal if it grew too redundant.
+     */
+    public void save() {
+        if (mRedundantCount >= COMPACT_THRESHOLD && mRedundantCount >= mEntries.size()) {
+            rewriteJournal();
+        }
+        else {
+            flushWriter();
+        }
+    }
+    
+    
+    /**
+     * Flush and release the journal file.
+     */
+    public void close() {
+        flushWriter();
+        closeWriter();
+    }
+    
+    
+    ////////PRIVATE
+    /*
+     * @return true if the whole journal was read, false if it is missing or damaged
+     */
+    private boolean replayJournal() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(mJournalFile), 8192);
+            StringBuilder line = new StringBuilder();
+            boolean header = true;
+            int c;
+            while ((c = reader.read()) != -1) {
+                if (c != '\n') {
+                    line.append((char) c);
+                    continue;
+                }
+                
+                if (header) {
+                    if (!MAGIC.contentEquals(line)) 
+                        return false;
+                    header = false;
+                }
+                else if (!replayRecord(line.toString())) {
+                    if(DEBUG) Log.w(TAG, "damaged journal record: " + line);
+                    return false;
+                }
+                line.setLength(0);
+            }
+            
+            // anything left is a record cut short
+            return line.length() == 0 && !header;
+        }
+        catch (IOException e) {
+            if(DEBUG) Log.e(TAG, "error reading journal", e);
+            return false;
+        }
+        finally {
+            if (reader != null) {
+                try { reader.close(); } catch (IOException e) {}
+            }
+        }
+    }
+    
+    
+    private boolean replayRecord(String record) {
+        if (record.length() < 3 || record.charAt(1) != ' ') {
+            return false;
+        }
+        
+        String args = record.substring(2);
+        switch (record.charAt(0)) {
+        case 'S': {
+            int sep = args.indexOf(' ');
+            if (sep <= 0) 
+                return false;
+            long size;
+            try {
+                size = Long.parseLong(args.substring(sep + 1));
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            String key = args.substring(0, sep);
+            Long old = mEntries.remove(key);
+            mEntries.put(key, size);
+            if (old != null) {
+                mTotalSize -= old;
+                mRedundantCount++;
+            }
+            mTotalSize += size;
+            break;
+        }
+        case 'A':
+            moveToEnd(args);
+            mRedundantCount++;
+            break;
+            
+        case 'R': {
+            Long old = mEntries.remove(args);
+            if (old != null) 
+                mTotalSize -= old;
+            mRedundantCount += 2;
+            break;
+        }
+        default:
+            return false;
+        }
+        return true;
+    }
+    
+    
+    /* Fallback: take the files' modification time as their last access. */
+    private void scanDirectory() {
+        Map<String, File> found = new HashMap<String, File>();
+        listFiles(mDir, found);
+        
+        // stat each file once, not on every comparison
+        final long[] modified = new long[found.size()];
+        long[] lengths = new long[found.size()];
+        String[] names = new String[found.size()];
+        Integer[] order = new Integer[found.size()];
+        int i = 0;
+        for (Map.Entry<String, File> e : found.entrySet()) {
+            names[i] = e.getKey();
+            modified[i] = e.getValue().lastModified();
+            lengths[i] = e.getValue().length();
+            order[i] = i;
+            i++;
+        }
+        
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                long ta = modified[a];
+                long tb = modified[b];
+                return ta < tb ? -1 : (ta == tb ? 0 : 1);
+            }
+        });
+        
+        for (int j : order) {
+            mEntries.put(names[j], lengths[j]);
+            mTotalSize += lengths[j];
+        }
+        if(DEBUG) Log.d(TAG, "indexed " + mEntries.size() + " files by scanning " + mDir);
+    }
+    
+    
+    /* 
+     * After a damaged journal: forget files which are gone, and index files the 
+     * journal missed. Only those get stat-ed.
+     */
+    private void reconcileWithDirectory() {
+        Map<String, File> present = new HashMap<String, File>();
+        listFiles(mDir, present);
+        
+        Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> e = it.next();
+            if (!present.containsKey(e.getKey())) {
+                mTotalSize -= e.getValue();
+                it.remove();
+            }
+        }
+        
+        for (Map.Entry<String, File> e : present.entrySet()) {
+            if (!mEntries.containsKey(e.getKey())) {
+                long size = e.getValue().length();
+                mEntries.put(e.getKey(), size);
+                mTotalSize += size;
+            }
+        }
+    }
+    
+    
+    /*
+     * Collect the cached files under dir, by name. Dot files are ours or temporary. 
+     * Only names of two hex digits can be shard directories, so only those are listed;
+     * any other name is taken as a file without touching it.
+     */
+    private static void listFiles(File dir, Map<String, File> out) {
+        String[] names = dir.list();
+        if (names == null) {
+            return;
+        }
+        
+        for (String name : names) {
+            if (name.startsWith(".")) 
+                continue;
+            File f = new File(dir, name);
+            if (!isShardName(name)) {
+                out.put(name, f);
+                continue;
+            }
+            String[] children = f.list(); // null if it is a file after all
+            if (children == null) 
+                out.put(name, f);
+            else 
+                listFiles(f, out);
+        }
+    }
+    
+    
+    private static boolean isShardName(String name) {
+        return name.length() == 2 && Character.digit(name.charAt(0), 16) >= 0 
+                && Character.digit(name.charAt(1), 16) >= 0;
+    }
+    
+    
+    /* Write a fresh journal holding one store record per file, in LRU order. */
+    private void rewriteJournal() {
+        closeWriter();
+        
+        File tmp = new File(mDir, JOURNAL_FILE_NAME + ".tmp");
+        Writer writer = null;
+        try {
+            mDir.mkdirs();
+            writer = new BufferedWriter(new FileWriter(tmp), 8192);
+            writer.write(MAGIC);
+            writer.write('\n');
+            for (Map.Entry<String, Long> e : mEntries.entrySet()) {
+                writer.write("S " + e.getKey() + " " + e.getValue() + "\n");
+            }
+            writer.close();
+            writer = null;
+            
+            if (!tmp.renameTo(mJournalFile)) {
+                throw new IOException("can't rename " + tmp);
+            }
+            mRedundantCount = 0;
+        }
+        catch (IOException e) {
+            if(DEBUG) Log.e(TAG, "error writing journal", e);
+        }
+        finally {
+            if (writer != null) {
+                try { writer.close(); } catch (IOException e) {}
+            }
+        }
+    }
+    
+    
+    /* Make key the most recently used. */
+    private boolean moveToEnd(String key) {
+        Long size = mEntries.remove(key);
+        if (size == null) {
+            return false;
+        }
+        mEntries.put(key, size);
+        return true;
+    }
+    
+    
+    /* Callers count the records that supersede or remove an entry, as replayRecord() does. */
+    private void append(String record, boolean flush) {
+        try {
+            if (mWriter == null) {
+                if (!mJournalFile.exists()) {
+                    rewriteJournal(); // also brings the header
+                }
+                mWriter = new BufferedWriter(new FileWriter(mJournalFile, true), 8192);
+            }
+            mWriter.write(record);
+            mWriter.write('\n');
+            if (flush) {
+                mWriter.flush();
+            }
+        }
+        catch (IOException e) {
+            if(DEBUG) Log.e(TAG, "error appending to journal", e);
+            closeWriter();
+        }
+    }
+    
+    
+    private void flushWriter() {
+        if (mWriter != null) {
+            try {
+                mWriter.flush();
+            } catch (IOException e) {
+                if(DEBUG) Log.e(TAG, "error flushing journal", e);
+                closeWriter();
+            }
+        }
+    }
+    
+    
+    private void closeWriter() {
+        if (mWriter != null) {
+            try { mWriter.close(); } catch (IOException e) {}
+            mWriter = null;
+        }
+    }
+    
+    
+    private final File mDir;
+    private final File mJournalFile;
+    private Writer mWriter;
+    private long mTotalSize;
+    private int mRedundantCount; // journal records not needed to rebuild the index
+    
+    // the least recently used comes first. Insertion-ordered, so that lookups don't reorder 
+    // it: only journaled stores and accesses do, through moveToEnd().
+    private LinkedHashMap<String, Long> mEntries = new LinkedHashMap<String, Long>();
+}
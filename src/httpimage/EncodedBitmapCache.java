@@ -0,0 +1,48 @@
+//  Copyright 2012 Zonghai Li. All rights reserved.
+//
+//  Redistribution and use in binary and source forms, with or without modification,
+//  are permitted for any project, commercial or otherwise, provided that the
+//  following conditions are met:
+//  
+//  Redistributions in binary form must display the copyright notice in the About
+//  view, website, and/or documentation.
+//  
+//  Redistributions of source code must retain the copyright notice, this list of
+//  conditions, and the following disclaimer.
+//
+//  THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+//  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+//  PARTICULAR PURPOSE AND NONINFRINGEMENT OF THIRD PARTY RIGHTS. IN NO EVENT SHALL THE
+//  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+//  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+//  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THIS SOFTWARE.
+
+package httpimage;
+
+import java.io.InputStream;
+
+
+/**
+ * Storage that can hand out the encoded image as it was stored, for decoders that 
+ * work on the whole encoded data, such as RegionDecoder.
+ * 
+ * @author zonghai@gmail.com
+ */
+public interface EncodedBitmapCache extends BitmapCache {
+
+    /**
+     * Retrieve the encoded image, return null means cache miss
+     * @param key
+     */
+    public byte[] loadBinary(String key);
+    
+    
+    /**
+     * Open a stream over the encoded image, which the caller closes. Storages on disk 
+     * stream the file, so that a large image doesn't have to be held in memory; a stream
+     * from a file with an EntryChecksum header is a VerifyingInputStream.
+     * @param key
+     * @return null means cache miss
+     */
+    public InputStream openBinary(String key);
+}
@@ -0,0 +1,326 @@
+//  Copyright 2012 Zonghai Li. All rights reserved.
+//
+//  Redistribution and use in binary and source forms, with or without modification,
+//  are permitted for any project, commercial or otherwise, provided that the
+//  following conditions are met:
+//  
+//  Redistributions in binary form must display the copyright notice in the About
+//  view, website, and/or documentation.
+//  
+//  Redistributions of source code must retain the copyright notice, this list of
+//  conditions, and the following disclaimer.
+//
+//  THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+//  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+//  PARTICULAR PURPOSE AND NONINFRINGEMENT OF THIRD PARTY RIGHTS. IN NO EVENT SHALL THE
+//  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+//  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+//  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THIS SOFTWARE.
+
+
+package httpimage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+
+/**
+ * Memory tier of encoded image data (JPEG, PNG...), put in front of a persistent storage.
+ * 
+ * <p>
+ * The encoded bytes of an image are usually 10 times smaller than the decoded bitmap, so 
+ * this tier keeps many more images warm than the bitmap cache for the same heap, and a 
+ * hit here saves the storage read, though not the decode. It is used as the persistence 
+ * layer of HttpImageManager, wrapping the real one:
+ * 
+ * <pre>
+ *     new HttpImageManager(memoryCache, 
+ *             new EncodedMemoryCache(new FileSystemPersistence(dir), 4 * 1024 * 1024));
+ * </pre>
+ * 
+ * Data stored is kept in memory and written through to the storage. Data loaded from a 
+ * storage that hands out encoded data (EncodedBitmapCache) is kept in memory too, so the 
+ * tier warms up again after a restart. Only data the tier can keep is read in memory; a 
+ * larger image is streamed to the decoder by the storage.
+ * 
+ * @author zonghai@gmail.com
+ */
+public class EncodedMemoryCache implements DecodingBitmapCache, EncodedBitmapCache {
+    
+    private static final String TAG = "EncodedMemoryCache";
+    private static final boolean DEBUG = false;
+    
+    
+    /**
+     * @param persistence the storage to write through to
+     * @param maxBytes max number of encoded bytes held in memory
+     */
+    public EncodedMemoryCache(BitmapCache persistence, int maxBytes) {
+        if (persistence == null) 
+            throw new NullPointerException("persistence must not be null");
+        mPersistence = persistence;
+        mMaxSize = maxBytes;
+    }
+    
+    
+    /**
+     * Decode into bitmaps taken from the pool when possible.
+     * @param pool null to disable
+     */
+    public void setBitmapPool (BitmapPool pool) {
+        mBitmapPool = pool;
+    }
+    
+    
+    @Override
+    public boolean exists(String key) {
+        synchronized (this) {
+            if (mMap.containsKey(key)) 
+                return true;
+        }
+        return mPersistence.exists(key);
+    }
+
+    
+    @Override
+    public Bitmap loadData(String key) {
+        return loadData(key, DecodeOptions.DEFAULT);
+    }
+
+    
+    @Override
+    public Bitmap loadData(String key, DecodeOptions options) {
+        byte[] binary;
+        synchronized (this) {
+            binary = mMap.get(key);
+            if (binary != null) 
+                mHitCount++;
+            else 
+                mMissCount++;
+        }
+        
+        if (binary != null) {
+            Bitmap bitmap = BitmapUtil.decodeByteArray(binary, options, mBitmapPool);
+            if (bitmap != null) {
+                return bitmap;
+            }
+            if(DEBUG) Log.d(TAG, key + " can't be decoded from memory");
+            remove(key);
+        }
+        
+        if (mPersistence instanceof EncodedBitmapCache) {
+            InputStream in = ((EncodedBitmapCache) mPersistence).openBinary(key);
+            if (in == null) {
+                return null;
+            }
+            
+            binary = readKeepable(in);
+            if (binary != null) {
+                Bitmap bitmap = BitmapUtil.decodeByteArray(binary, options, mBitmapPool);
+                if (bitmap != null) {
+                    keep(key, binary);
+                    return bitmap;
+                }
+            }
+            // let the storage stream data too large to keep, and deal with data that doesn't decode
+        }
+        return DecodeOptions.load(mPersistence, key, options);
+    }
+
+    
+    @Override
+    public byte[] loadBinary(String key) {
+        synchronized (this) {
+            byte[] binary = mMap.get(key);
+            if (binary != null) {
+                mHitCount++;
+                return binary;
+            }
+            mMissCount++;
+        }
+        
+        if (!(mPersistence instanceof EncodedBitmapCache)) {
+            return null;
+        }
+        
+        byte[] binary = ((EncodedBitmapCache) mPersistence).loadBinary(key);
+        if (binary != null) {
+            keep(key, binary);
+        }
+        return binary;
+    }
+
+    
+    @Override
+    public InputStream openBinary(String key) {
+        byte[] binary;
+        synchronized (this) {
+            binary = mMap.get(key);
+        }
+        if (binary != null) 
+            return new ByteArrayInputStream(binary);
+        
+        // not kept in the tier, streams are for images too large to be held in memory
+        if (mPersistence instanceof EncodedBitmapCache) 
+            return ((EncodedBitmapCache) mPersistence).openBinary(key);
+        return null;
+    }
+
+    
+    @Override
+    public Bitmap peekData(String key) {
+        return null; // decoding is too expensive for a peek
+    }
+
+    
+    @Override
+    public void storeData(String key, Object data) {
+        byte[] binary = (byte[]) data;
+        if (binary != null) {
+            keep(key, binary);
+        }
+        mPersistence.storeData(key, data);
+    }
+
+    
+    @Override
+    public void invalidate(String key) {
+        remove(key);
+        mPersistence.invalidate(key);
+    }
+
+    
+    @Override
+    public void clear() {
+        synchronized (this) {
+            mMap.clear();
+            mSize = 0;
+        }
+        mPersistence.clear();
+    }
+    
+    
+    @Override
+    public void trimMemory(int level) {
+        synchronized (this) {
+            trimToSize(TrimPolicy.trimmedSize(mSize, level));
+        }
+        mPersistence.trimMemory(level);
+    }
+    
+    
+    /**
+     * Number of encoded bytes held in memory
+     */
+    public synchronized int getSize() {
+        return mSize;
+    }
+    
+    
+    public synchronized int getMaxSize() {
+        return mMaxSize;
+    }
+    
+    
+    /**
+     * Number of loads served from memory
+     */
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+    
+    
+    /**
+     * Number of loads passed on to the storage
+     */
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+    
+    
+    ////////PRIVATE
+    /* 
+     * Hold binary in memory as the data of key. A single image may take no more than 
+     * a quarter of the tier, a larger one replacing held data drops it, as it's stale.
+     */
+    private synchronized void keep(String key, byte[] binary) {
+        if (binary.length > mMaxSize / 4) {
+            remove(key);
+            return;
+        }
+        
+        byte[] old = mMap.put(key, binary);
+        if (old != null) 
+            mSize -= old.length;
+        mSize += binary.length;
+        trimToSize(mMaxSize);
+    }
+    
+    
+    /* 
+     * The data of the stream, which is closed, if it fits in a quarter of the tier. 
+     * @return null if it is larger, can't be read or fails its check
+     */
+    private byte[] readKeepable(InputStream in) {
+        int limit = mMaxSize / 4;
+        try {
+            ByteArrayOutputStream data = new ByteArrayOutputStream(Math.min(limit, 16 * 1024));
+            byte[] buf = new byte[8 * 1024];
+            int count;
+            while ((count = in.read(buf)) != -1) {
+                data.write(buf, 0, count);
+                if (data.size() > limit) {
+                    return null;
+                }
+            }
+            
+            if (in instanceof EntryChecksum.VerifyingInputStream 
+                    && !((EntryChecksum.VerifyingInputStream) in).verify()) {
+                return null;
+            }
+            return data.toByteArray();
+        }
+        catch (IOException e) {
+            if(DEBUG) Log.e(TAG, "error reading stored data", e);
+            return null;
+        }
+        finally {
+            try { in.close(); } catch (IOException e) {}
+        }
+    }
+    
+    
+    private synchronized void remove(String key) {
+        byte[] old = mMap.remove(key);
+        if (old != null) 
+            mSize -= old.length;
+    }
+    
+    
+    /* Drop least recently used data until the memory tier holds no more than maxBytes. */
+    private synchronized void trimToSize(int maxBytes) {
+        Iterator<byte[]> it = mMap.values().iterator();
+        while (mSize > maxBytes && it.hasNext()) {
+            mSize -= it.next().length;
+            it.remove();
+        }
+    }
+    
+    
+    private BitmapCache mPersistence;
+    private BitmapPool mBitmapPool;
+    private int mMaxSize;
+    private int mSize;
+    private int mHitCount;
+    private int mMissCount;
+    
+    // access-ordered, the least recently used comes first
+    private LinkedHashMap<String, byte[]> mMap = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+}
@@ -0,0 +1,302 @@
+//  Copyright 2012 Zonghai Li. All rights reserved.
+//
+//  Redistribution and use in binary and source forms, with or without modification,
+//  are permitted for any project, commercial or otherwise, provided that the
+//  following conditions are met:
+//  
+//  Redistributions in binary form must display the copyright notice in the About
+//  view, website, and/or documentation.
+//  
+//  Redistributions of source code must retain the copyright notice, this list of
+//  conditions, and the following disclaimer.
+//
+//  THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+//  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+//  PARTICULAR PURPOSE AND NONINFRINGEMENT OF THIRD PARTY RIGHTS. IN NO EVENT SHALL THE
+//  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+//  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+//  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THIS SOFTWARE.
+
+
+package httpimage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+import android.graphics.Bitmap;
+
+
+/**
+ * Integrity header stored in front of persisted image data: a magic number, the length 
+ * of the data and its CRC32, all big-endian ints. A truncated or damaged entry is told 
+ * apart from a valid one before it is handed to the decoder.
+ * 
+ * <p>
+ * Data stored before the header was introduced has no magic number, it's passed as is. 
+ * 
+ * <p>
+ * A file can be checked as it's streamed to the decoder with VerifyingInputStream, 
+ * so that it never has to be loaded in memory.
+ * 
+ * @author zonghai@gmail.com
+ */
+public final class EntryChecksum {
+
+    public static final int HEADER_SIZE = 12;
+    
+    /** returned by dataOffset() for a damaged entry */
+    public static final int CORRUPTED = -1;
+    
+    private static final int MAGIC = 0x48494353; // "HICS"
+    
+    
+    private EntryChecksum() {
+    }
+    
+    
+    /**
+     * Header to store in front of data
+     */
+    public static byte[] header(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        
+        byte[] header = new byte[HEADER_SIZE];
+        putInt(header, 0, MAGIC);
+        putInt(header, 4, data.length);
+        putInt(header, 8, (int)crc.getValue());
+        return header;
+    }
+    
+    
+    /**
+     * Data with its header in a single array, for stores that take a blob
+     */
+    public static byte[] wrap(byte[] data) {
+        byte[] stored = new byte[HEADER_SIZE + data.length];
+        System.arraycopy(header(data), 0, stored, 0, HEADER_SIZE);
+        System.arraycopy(data, 0, stored, HEADER_SIZE, data.length);
+        return stored;
+    }
+    
+    
+    /**
+     * Check a stored entry.
+     * @return offset of the data in stored: HEADER_SIZE if the entry verifies, 0 if it has
+     *         no header, or CORRUPTED.
+     */
+    public static int dataOffset(byte[] stored) {
+        if (stored.length < HEADER_SIZE || getInt(stored, 0) != MAGIC) {
+            return 0;
+        }
+        
+        int length = stored.length - HEADER_SIZE;
+        if (getInt(stored, 4) != length) {
+            return CORRUPTED;
+        }
+        
+        CRC32 crc = new CRC32();
+        crc.update(stored, HEADER_SIZE, length);
+        return getInt(stored, 8) == (int)crc.getValue() ? HEADER_SIZE : CORRUPTED;
+    }
+    
+    
+    /**
+     * Read the data of a stored entry from a file.
+     * @throws java.io.FileNotFoundException if the file doesn't exist
+     * @throws IOException if the file can't be read, or is damaged
+     */
+    public static byte[] readFile(File file) throws IOException {
+        VerifyingInputStream in = new VerifyingInputStream(new FileInputStream(file));
+        try {
+            ByteArrayOutputStream data = new ByteArrayOutputStream((int)Math.min(file.length(), Integer.MAX_VALUE));
+            byte[] buf = new byte[8 * 1024];
+            int count;
+            while ((count = in.read(buf)) != -1) {
+                data.write(buf, 0, count);
+            }
+            
+            if (!in.verify()) {
+                throw new IOException("corrupted entry: " + file);
+            }
+            return data.toByteArray();
+        }
+        finally {
+            in.close();
+        }
+    }
+    
+    
+    /**
+     * Decode a stored entry from a file, streaming it through a VerifyingInputStream.
+     * @return the bitmap, or null if the data verifies but can't be decoded
+     * @throws java.io.FileNotFoundException if the file doesn't exist
+     * @throws IOException if the file can't be read, or is damaged
+     */
+    public static Bitmap decodeFile(File file, DecodeOptions options, BitmapPool pool) throws IOException {
+        VerifyingInputStream in = new VerifyingInputStream(new FileInputStream(file));
+        try {
+            Bitmap bitmap = BitmapUtil.decodeStream(in, options, pool);
+            
+            // data without header that doesn't decode is most likely truncated
+            if (!in.verify() || (bitmap == null && !in.isChecked())) {
+                throw new IOException("corrupted entry: " + file);
+            }
+            return bitmap;
+        }
+        finally {
+            in.close();
+        }
+    }
+    
+    
+    /**
+     * Stream over the data of a stored entry, skipping the header and computing the 
+     * CRC32 of what's read. A stream without header is passed as is.
+     */
+    public static class VerifyingInputStream extends FilterInputStream {
+        
+        private final CRC32 mCrc = new CRC32();
+        private boolean mChecked;
+        private int mLength;
+        private int mExpectedCrc;
+        private long mCount;
+        
+        // what was read looking for a header when there's none
+        private byte[] mPrefix;
+        private int mPrefixPos;
+        private int mPrefixEnd;
+        
+        
+        public VerifyingInputStream(InputStream in) throws IOException {
+            super(in);
+            
+            byte[] header = new byte[HEADER_SIZE];
+            int n = 0;
+            while (n < HEADER_SIZE) {
+                int count = in.read(header, n, HEADER_SIZE - n);
+                if (count < 0) 
+                    break;
+                n += count;
+            }
+            
+            if (n == HEADER_SIZE && getInt(header, 0) == MAGIC) {
+                mChecked = true;
+                mLength = getInt(header, 4);
+                mExpectedCrc = getInt(header, 8);
+            }
+            else {
+                mPrefix = header;
+                mPrefixEnd = n;
+            }
+        }
+        
+        
+        /**
+         * Whether the stream has a header to verify against
+         */
+        public boolean isChecked() {
+            return mChecked;
+        }
+        
+        
+        /**
+         * Read the rest of the stream and check it against the header.
+         * @return false if the data is damaged, true if it verifies or there's no header
+         */
+        public boolean verify() throws IOException {
+            if (!mChecked) {
+                return true;
+            }
+            
+            byte[] buf = new byte[4096];
+            while (read(buf, 0, buf.length) >= 0) {
+                // drain
+            }
+            return mCount == mLength && (int)mCrc.getValue() == mExpectedCrc;
+        }
+        
+        
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+        
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mPrefixPos < mPrefixEnd) {
+                int n = Math.min(len, mPrefixEnd - mPrefixPos);
+                System.arraycopy(mPrefix, mPrefixPos, b, off, n);
+                mPrefixPos += n;
+                return n;
+            }
+            
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                mCrc.update(b, off, n);
+                mCount += n;
+            }
+            return n;
+        }
+        
+        
+        @Override
+        public long skip(long n) throws IOException {
+            // everything goes through the checksum
+            byte[] buf = new byte[(int)Math.min(n, 4096)];
+            long skipped = 0;
+            while (skipped < n) {
+                int count = read(buf, 0, (int)Math.min(n - skipped, buf.length));
+                if (count < 0) 
+                    break;
+                skipped += count;
+            }
+            return skipped;
+        }
+        
+        
+        @Override
+        public int available() throws IOException {
+            return mPrefixEnd - mPrefixPos + in.available();
+        }
+        
+        
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+        
+        
+        @Override
+        public void mark(int readlimit) {
+        }
+        
+        
+        @Override
+        public void reset() throws IOException {
+            throw new IOException("mark not supported");
+        }
+    }
+    
+    
+    ////////PRIVATE
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte)(v >>> 24);
+        b[off + 1] = (byte)(v >>> 16);
+        b[off + 2] = (byte)(v >>> 8);
+        b[off + 3] = (byte)v;
+    }
+    
+    
+    private static int getInt(byte[] b, int off) {
+        return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16) 
+                | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+}
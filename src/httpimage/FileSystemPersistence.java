@@ -21,8 +21,17 @@
 package httpimage;
 
 import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 import android.graphics.Bitmap;
 import android.util.Log;
 
@@ -30,69 +39,309 @@ import android.util.Log;
 /**
  * File system implementation of persistent storage.
  * 
+ * <p>
+ * The stored files are tracked by a journaled DiskCacheIndex, so exists() and the 
+ * bookkeeping never hit the file system. When given a budget of disk space, the least 
+ * recently used files are deleted in the background once it is exceeded.
+ * 
+ * <p>
+ * Files can be spread over a tree of subdirectories named after the leading hex digits
+ * of the key, e.g. AB/CD/ABCD0123... with two levels, to keep directories small. Files of 
+ * a flat directory are moved into the tree lazily, when first loaded.
+ * 
+ * <p>
+ * Data is written to a temporary file which is then renamed to the key, so a crash in the 
+ * middle of a write never leaves a truncated file behind under the key. Leftover 
+ * temporary files are deleted at startup. The store is journaled just before the rename,
+ * so every file that made it to its key is counted against the budget; removals are 
+ * journaled once the file is deleted, for the same reason.
+ * 
+ * <p>
+ * Each file starts with the length and CRC32 of the data (see EntryChecksum). Files are 
+ * streamed to the decoder, which checks them on the way without loading them in memory. 
+ * An entry that fails the check is deleted and reported as missing, so that it is 
+ * fetched again.
+ * 
  * @author zonghai@gmail.com
  */
-public class FileSystemPersistence implements BitmapCache{
+public class FileSystemPersistence implements DecodingBitmapCache, EncodedBitmapCache{
 
     private static String TAG = "FileSystemPersistence";
-    private static boolean DEBUG = true;
+    private static final boolean DEBUG = false;
+    
+    public static final long UNBOUNDED = -1;
+    
+    public static final int FLAT = 0;
+    public static final int MAX_LEVELS = 4;
+    
+    private static final String TEMP_SUFFIX = ".tmp";
     
     
     private String mBaseDir;
+    private BitmapPool mBitmapPool;
+    
+    private long mMaxSize;
+    private int mLevels;
+    private DiskCacheIndex mIndex;
+    private boolean mIndexLoaded;
+    private boolean mSyncWrites;
+    private boolean mMaintenanceScheduled;
+    private int mCorruptionCount;
+    private ThreadPoolExecutor mMaintenanceExecutor = new ThreadPoolExecutor(0, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
     
     
     public FileSystemPersistence ( String baseDir ) {
+        this(baseDir, UNBOUNDED);
+    }
+    
+    
+    /**
+     * @param baseDir
+     * @param maxBytes disk budget, or UNBOUNDED
+     */
+    public FileSystemPersistence ( String baseDir, long maxBytes ) {
+        this(baseDir, maxBytes, FLAT);
+    }
+    
+    
+    /**
+     * @param baseDir
+     * @param maxBytes disk budget, or UNBOUNDED
+     * @param levels number of subdirectory levels, each named after 2 hex digits of the 
+     *        key (256-way fan-out), or FLAT
+     */
+    public FileSystemPersistence ( String baseDir, long maxBytes, int levels ) {
+        if (levels < FLAT || levels > MAX_LEVELS) 
+            throw new IllegalArgumentException("levels must be in [0, " + MAX_LEVELS + "]: " + levels);
+        
         mBaseDir = baseDir;
+        mMaxSize = maxBytes;
+        mLevels = levels;
+        mIndex = new DiskCacheIndex(new File(baseDir));
+    }
+    
+    
+    /**
+     * Decode into bitmaps taken from the pool when possible.
+     * @param pool null to disable
+     */
+    public void setBitmapPool (BitmapPool pool) {
+        mBitmapPool = pool;
+    }
+    
+    
+    /**
+     * Force written data to the storage device (fsync) before it is renamed into place. 
+     * Safer against power loss, but each store gets much slower. Off by default.
+     * @param sync
+     */
+    public void setSyncWrites (boolean sync) {
+        mSyncWrites = sync;
     }
     
     
     @Override
-    public void clear() {
+    public synchronized void clear() {
         try {
             this.removeDir(new File(mBaseDir));
         } 
         catch (IOException e) {
             throw new RuntimeException ( e );
         }
+        finally {
+            mIndex.clear();
+            mIndexLoaded = true;
+        }
     }
 
     
     @Override
-    public boolean exists(String key) {
-        File file = new File( new File(mBaseDir), key) ;
-        return file.exists();
+    public synchronized boolean exists(String key) {
+        return index().contains(key);
     }
 
     
     @Override
     public void invalidate(String key) {
+        synchronized (this) {
+            if (!fileFor(key).delete() && mLevels != FLAT) 
+                new File(mBaseDir, key).delete(); // not migrated yet
+            index().remove(key);
+        }
     }
 
     
     @Override
     public Bitmap loadData(String key) {
-        if( !exists(key) ) {
+        return loadData(key, DecodeOptions.DEFAULT);
+    }
+
+    
+    @Override
+    public Bitmap loadData(String key, DecodeOptions options) {
+        synchronized (this) {
+            // mark it used, the access is journaled with the next maintenance
+            if (!index().touch(key)) 
+                return null;
+        }
+        scheduleMaintenance();
+        
+        File file = fileFor(key);
+        Bitmap bitmap;
+        try {
+            try {
+                bitmap = EntryChecksum.decodeFile(file, options, mBitmapPool);
+            }
+            catch (FileNotFoundException e) {
+                if (!migrate(key, file)) 
+                    throw e;
+                bitmap = EntryChecksum.decodeFile(file, options, mBitmapPool);
+            }
+        }
+        catch (FileNotFoundException e) {
+            // deleted behind our back
+            synchronized (this) {
+                index().remove(key);
+            }
+            return null;
+        }
+        catch (IOException e) {
+            Log.w(TAG, "corrupted entry dropped: " + key + ", " + e.getMessage());
+            synchronized (this) {
+                mCorruptionCount++;
+            }
+            invalidate(key);
             return null;
         }
+        return bitmap;
+    }
+
+    
+    @Override
+    public byte[] loadBinary(String key) {
+        synchronized (this) {
+            if (!index().touch(key)) 
+                return null;
+        }
+        scheduleMaintenance();
         
-        File file = new File( new File(mBaseDir), key) ;
-        return BitmapUtil.decodeFile(file.getAbsolutePath(), HttpImageManager.DECODING_MAX_PIXELS_DEFAULT);
+        File file = fileFor(key);
+        try {
+            try {
+                return EntryChecksum.readFile(file);
+            }
+            catch (FileNotFoundException e) {
+                if (!migrate(key, file)) 
+                    throw e;
+                return EntryChecksum.readFile(file);
+            }
+        }
+        catch (FileNotFoundException e) {
+            synchronized (this) {
+                index().remove(key);
+            }
+            return null;
+        }
+        catch (IOException e) {
+            Log.w(TAG, "corrupted entry dropped: " + key + ", " + e.getMessage());
+            synchronized (this) {
+                mCorruptionCount++;
+            }
+            invalidate(key);
+            return null;
+        }
+    }
+
+    
+    @Override
+    public InputStream openBinary(String key) {
+        synchronized (this) {
+            if (!index().touch(key)) 
+                return null;
+        }
+        scheduleMaintenance();
+        
+        File file = fileFor(key);
+        try {
+            try {
+                return openVerifying(file);
+            }
+            catch (FileNotFoundException e) {
+                if (!migrate(key, file)) 
+                    throw e;
+                return openVerifying(file);
+            }
+        }
+        catch (FileNotFoundException e) {
+            synchronized (this) {
+                index().remove(key);
+            }
+            return null;
+        }
+        catch (IOException e) {
+            if(DEBUG) Log.e(TAG, "error opening " + key, e);
+            return null;
+        }
+    }
+    
+    
+    @Override
+    public Bitmap peekData(String key) {
+        return null; // only available through disk I/O
+    }
+
+    
+    @Override
+    public void trimMemory(int level) {
+        // nothing held in memory
     }
 
     
     @Override
     public void storeData(String key, Object data) {
-        File file = new File( new File(mBaseDir), key) ;
+        File file = fileFor(key);
+        File tmp = null;
         FileOutputStream outputStream = null;
         
         try {
+            synchronized (this) {
+                index(); // loading it sweeps temporary files, not ours then
+            }
             if (!file.getParentFile().exists()) {
                 file.getParentFile().mkdirs();
             }
-            outputStream = new FileOutputStream(file);
+            // in the base directory, where leftovers are looked for. 
+            // Hidden from the index, which ignores dot files.
+            tmp = File.createTempFile("." + key + "-", TEMP_SUFFIX, new File(mBaseDir));
+            outputStream = new FileOutputStream(tmp);
             
-            outputStream.write((byte[])data);
+            byte[] binary = (byte[])data;
+            outputStream.write(EntryChecksum.header(binary));
+            outputStream.write(binary);
             outputStream.flush();
+            if (mSyncWrites) {
+                outputStream.getFD().sync();
+            }
+            outputStream.close();
+            outputStream = null;
+            
+            // journaled before the file appears: a crash in between leaves a record without 
+            // its file, dropped when loaded, never a file the budget doesn't know about
+            synchronized (this) {
+                long oldSize = index().sizeOf(key);
+                index().put(key, EntryChecksum.HEADER_SIZE + binary.length);
+                if (!tmp.renameTo(file)) {
+                    if (oldSize < 0) 
+                        index().remove(key);
+                    else 
+                        index().put(key, oldSize);
+                    throw new IOException("can't rename " + tmp + " to " + file);
+                }
+            }
+            tmp = null;
+            
+            if (mMaxSize != UNBOUNDED) 
+                scheduleMaintenance();
         }
         catch (IOException e) {
             if(DEBUG) Log.e(TAG, "error storing bitmap", e);
@@ -103,10 +352,150 @@ public class FileSystemPersistence implements BitmapCache{
                     outputStream.close();
                 } catch (IOException e) {}
             }
+            if (tmp != null) {
+                tmp.delete();
+            }
         }
     }
     
     
+    /**
+     * Number of bytes stored
+     */
+    public synchronized long getSize() {
+        return index().getTotalSize();
+    }
+    
+    
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+    
+    
+    /**
+     * Number of entries found damaged, and dropped, when loaded
+     */
+    public synchronized int getCorruptionCount() {
+        return mCorruptionCount;
+    }
+    
+    
+    /**
+     * Write buffered journal records now, to be called when the application goes to 
+     * the background. This is a blocking call.
+     */
+    public synchronized void flush() {
+        if (mIndexLoaded) {
+            mIndex.save();
+        }
+    }
+    
+    
+    /* Replay the journal on first use. Call with the lock held. */
+    private DiskCacheIndex index() {
+        if (!mIndexLoaded) {
+            removeTempFiles();
+            mIndex.load();
+            mIndexLoaded = true;
+            if(DEBUG) Log.d(TAG, "index loaded: " + mIndex.size() + " files, " + mIndex.getTotalSize() + " bytes");
+            if (mMaxSize != UNBOUNDED && mIndex.getTotalSize() > mMaxSize) 
+                scheduleMaintenance();
+        }
+        return mIndex;
+    }
+    
+    
+    /* Where the file of a key lives in the configured layout. */
+    private File fileFor(String key) {
+        if (mLevels == FLAT || key.length() < 2 * mLevels) {
+            return new File(mBaseDir, key);
+        }
+        
+        StringBuilder path = new StringBuilder(key.length() + 3 * mLevels);
+        for (int i = 0; i < mLevels; i++) {
+            path.append(key, 2 * i, 2 * i + 2).append(File.separatorChar);
+        }
+        path.append(key);
+        return new File(mBaseDir, path.toString());
+    }
+    
+    
+    private static InputStream openVerifying(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return new EntryChecksum.VerifyingInputStream(in);
+        }
+        catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+    
+    
+    /* Move a file from the flat layout into the tree. */
+    private boolean migrate(String key, File target) {
+        if (mLevels == FLAT) {
+            return false;
+        }
+        
+        File flat = new File(mBaseDir, key);
+        target.getParentFile().mkdirs();
+        boolean moved = flat.renameTo(target);
+        if(DEBUG && moved) Log.d(TAG, "migrated " + key);
+        return moved;
+    }
+    
+    
+    /* Delete what interrupted writes left behind. */
+    private void removeTempFiles() {
+        File[] leftovers = new File(mBaseDir).listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.getName().startsWith(".") && f.getName().endsWith(TEMP_SUFFIX);
+            }
+        });
+        
+        if (leftovers != null) {
+            for (File f : leftovers) {
+                f.delete();
+            }
+            if(DEBUG && leftovers.length > 0) Log.d(TAG, "removed " + leftovers.length + " temporary files");
+        }
+    }
+    
+    
+    /* Evict over budget, flush and compact the journal, in the background. */
+    private void scheduleMaintenance() {
+        synchronized (this) {
+            if (mMaintenanceScheduled) 
+                return;
+            mMaintenanceScheduled = true;
+        }
+        
+        mMaintenanceExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (FileSystemPersistence.this) {
+                    mMaintenanceScheduled = false;
+                    
+                    if (mMaxSize != UNBOUNDED) {
+                        // deleted before their removal is journaled, as in invalidate()
+                        List<String> evicted = index().evictionCandidates(mMaxSize);
+                        for (String key : evicted) {
+                            if (!fileFor(key).delete() && mLevels != FLAT) 
+                                new File(mBaseDir, key).delete();
+                            mIndex.remove(key);
+                        }
+                        if(DEBUG && !evicted.isEmpty()) Log.d(TAG, "evicted " + evicted.size() + " files");
+                    }
+                    
+                    mIndex.save();
+                }
+            }
+        });
+    }
+    
+    
     /**
      * Delete a directory
      *
@@ -0,0 +1,141 @@
+//  Copyright 2012 Zonghai Li. All rights reserved.
+//
+//  Redistribution and use in binary and source forms, with or without modification,
+//  are permitted for any project, commercial or otherwise, provided that the
+//  following conditions are met:
+//  
+//  Redistributions in binary form must display the copyright notice in the About
+//  view, website, and/or documentation.
+//  
+//  Redistributions of source code must retain the copyright notice, this list of
+//  conditions, and the following disclaimer.
+//
+//  THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+//  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+//  PARTICULAR PURPOSE AND NONINFRINGEMENT OF THIRD PARTY RIGHTS. IN NO EVENT SHALL THE
+//  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+//  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+//  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THIS SOFTWARE.
+
+
+package httpimage;
+
+
+/**
+ * Compact estimator of how often keys are accessed: a count-min sketch of 4-bit counters, 
+ * 16 of them packed per long. Once the number of recorded accesses reaches the sample 
+ * size, all counters are halved, so the popularity of old keys fades away over time.
+ * 
+ * <p>
+ * Not thread safe, callers must synchronize.
+ * 
+ * @author zonghai@gmail.com
+ */
+public class FrequencySketch {
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int[] SEEDS = { 0x97cb3127, 0xb0f2ee9b, 0xc2b2ae35, 0x27d4eb2f };
+    private static final int MAX_COUNT = 15;
+    
+    
+    /**
+     * @param maxSize number of entries of the cache the sketch works for
+     */
+    public FrequencySketch(int maxSize) {
+        int n = 1;
+        while (n < Math.max(maxSize, 16)) {
+            n <<= 1;
+        }
+        mTable = new long[n];
+        mTableMask = n - 1;
+        mSampleSize = 10 * Math.max(maxSize, 1);
+    }
+    
+    
+    /**
+     * Estimated number of times the key has been recorded, at most 15.
+     */
+    public int frequency(String key) {
+        int hash = spread(key.hashCode());
+        int min = MAX_COUNT;
+        for (int i = 0; i < SEEDS.length; i++) {
+            min = Math.min(min, count(hash, i));
+        }
+        return min;
+    }
+    
+    
+    /**
+     * Record an access to the key.
+     */
+    public void increment(String key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            added |= incrementAt(hash, i);
+        }
+        
+        if (added && ++mSize >= mSampleSize) {
+            reset();
+        }
+    }
+    
+    
+    public void clear() {
+        for (int i = 0; i < mTable.length; i++) {
+            mTable[i] = 0L;
+        }
+        mSize = 0;
+    }
+    
+    
+    ////////PRIVATE
+    private int count(int hash, int i) {
+        int h = rehash(hash, i);
+        int index = h & mTableMask;
+        int offset = (h >>> 28) << 2; // one of the 16 counters of the long
+        return (int) ((mTable[index] >>> offset) & 0xfL);
+    }
+    
+    
+    private boolean incrementAt(int hash, int i) {
+        int h = rehash(hash, i);
+        int index = h & mTableMask;
+        int offset = (h >>> 28) << 2;
+        long mask = 0xfL << offset;
+        if ((mTable[index] & mask) != mask) {
+            mTable[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+    
+    
+    /* Halve every counter. */
+    private void reset() {
+        for (int i = 0; i < mTable.length; i++) {
+            mTable[i] = (mTable[i] >>> 1) & RESET_MASK;
+        }
+        mSize >>>= 1;
+    }
+    
+    
+    private static int rehash(int hash, int i) {
+        int h = hash * SEEDS[i];
+        return h ^ (h >>> 15);
+    }
+    
+    
+    private static int spread(int h) {
+        h ^= (h >>> 17);
+        h *= 0xed5ad4bb;
+        h ^= (h >>> 11);
+        return h;
+    }
+    
+    
+    private final long[] mTable;
+    private final int mTableMask;
+    private final int mSampleSize;
+    private int mSize;
+}
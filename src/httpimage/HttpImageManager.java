@@ -27,7 +27,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -38,6 +44,7 @@ import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 
 import android.graphics.Bitmap;
+import android.graphics.Rect;
 import android.net.Uri;
 import android.os.Handler;
 import android.text.TextUtils;
@@ -98,7 +105,13 @@ public class HttpImageManager{
 
     public static final int DEFAULT_CACHE_SIZE = 64;
     public static final int UNCONSTRAINED = -1;
-    public static final int DECODING_MAX_PIXELS_DEFAULT = 600 * 800;
+    public static final int DECODING_MAX_PIXELS_DEFAULT = DecodeOptions.DEFAULT_MAX_NUM_OF_PIXELS;
+    
+    /** Edge of a tile in pixels of the decoded tile, see loadTiles() */
+    public static final int TILE_SIZE = 256;
+    
+    // images kept open for tiled loading, each holds its encoded data
+    private static final int MAX_REGION_DECODERS = 2;
 
 
     public static class LoadRequest {
@@ -131,6 +144,73 @@ public class HttpImageManager{
         public ImageView getImageView() {
             return mImageView;
         }
+        
+        
+        /**
+         * Decode the image to the size it is displayed at rather than within the pixel 
+         * constraint only. Without it, the size of the target ImageView is used, if known.
+         * @param width in pixels, or UNCONSTRAINED
+         * @param height in pixels, or UNCONSTRAINED
+         */
+        public void setTargetSize(int width, int height) {
+            mTargetWidth = width;
+            mTargetHeight = height;
+        }
+        
+        
+        public int getTargetWidth() {
+            return mTargetWidth;
+        }
+        
+        
+        public int getTargetHeight() {
+            return mTargetHeight;
+        }
+        
+        
+        /**
+         * Scale the decoded image down to fit the target size, instead of only 
+         * subsampling it by a power of 2, which leaves it up to twice as large.
+         * @param scale
+         */
+        public void setScaleToTarget(boolean scale) {
+            mScaleToTarget = scale;
+        }
+        
+        
+        /**
+         * Pixel format to decode to, instead of the one of the HttpImageManager.
+         * @param config a Bitmap.Config, or DecodeOptions.CONFIG_AUTO
+         */
+        public void setPreferredConfig(Bitmap.Config config) {
+            mConfig = config;
+            mConfigSet = true;
+        }
+        
+        
+        /**
+         * @return the pixel format set, or DecodeOptions.CONFIG_AUTO
+         */
+        public Bitmap.Config getPreferredConfig() {
+            return mConfig;
+        }
+        
+        
+        /**
+         * Key of the decoded bitmap in the memory cache, which depends on the size and 
+         * the pixel format it's decoded to. The persistent storage holds the encoded image 
+         * under getHashedUri().
+         */
+        public String getCacheKey() {
+            String key = mHashedUri;
+            if (mTargetWidth > 0 || mTargetHeight > 0) {
+                key += "-" + mTargetWidth + "x" + mTargetHeight + (mScaleToTarget ? "s" : "");
+            }
+            if (mConfig != Bitmap.Config.ARGB_8888) {
+                key += "-" + (mConfig == DecodeOptions.CONFIG_AUTO ? "auto" : mConfig.name());
+            }
+            return key;
+        }
 
 
         public Uri getUri() {
@@ -179,6 +259,11 @@ public class HttpImageManager{
 
         private OnLoadResponseListener mListener;
         private ImageView mImageView;
+        private int mTargetWidth = UNCONSTRAINED;
+        private int mTargetHeight = UNCONSTRAINED;
+        private boolean mScaleToTarget;
+        private Bitmap.Config mConfig = Bitmap.Config.ARGB_8888;
+        private boolean mConfigSet;
     }
 
 
@@ -197,6 +282,117 @@ public class HttpImageManager{
         public Bitmap filter ( final Bitmap in );
     }
     
+    
+    /**
+     * Tiled loading of an image too large to be decoded whole, see loadTiles().
+     */
+    public static class TileRequest {
+        
+        /**
+         * @param uri
+         * @param viewport visible part of the image, in pixels of the full image
+         * @param scale displayed size over full size
+         * @param l listener of the tiles loaded asynchronously
+         */
+        public TileRequest(Uri uri, Rect viewport, float scale, OnTileLoadListener l) {
+            if (viewport == null) 
+                throw new NullPointerException("viewport must not be null");
+            if (scale <= 0) 
+                throw new IllegalArgumentException("scale must be positive");
+            
+            mSource = new LoadRequest(uri);
+            mViewport = new Rect(viewport);
+            mScale = scale;
+            mListener = l;
+        }
+        
+        
+        public Uri getUri() {
+            return mSource.getUri();
+        }
+        
+        
+        public Rect getViewport() {
+            return mViewport;
+        }
+        
+        
+        public float getScale() {
+            return mScale;
+        }
+        
+        
+        /**
+         * Subsampling of the tiles: the largest power of 2 that keeps them at least 
+         * as large as displayed.
+         */
+        public int getSampleSize() {
+            int sampleSize = 1;
+            while (sampleSize * 2 * mScale <= 1) {
+                sampleSize *= 2;
+            }
+            return sampleSize;
+        }
+        
+        
+        private LoadRequest mSource;
+        private Rect mViewport;
+        private float mScale;
+        private OnTileLoadListener mListener;
+    }
+    
+    
+    public static class Tile {
+        Tile(Rect region, int sampleSize, int column, int row, Bitmap bitmap) {
+            mRegion = region;
+            mSampleSize = sampleSize;
+            mColumn = column;
+            mRow = row;
+            mBitmap = bitmap;
+        }
+        
+        
+        /**
+         * Part of the image the tile covers, in pixels of the full image
+         */
+        public Rect getRegion() {
+            return mRegion;
+        }
+        
+        
+        public int getSampleSize() {
+            return mSampleSize;
+        }
+        
+        
+        public int getColumn() {
+            return mColumn;
+        }
+        
+        
+        public int getRow() {
+            return mRow;
+        }
+        
+        
+        public Bitmap getBitmap() {
+            return mBitmap;
+        }
+        
+        
+        private final Rect mRegion;
+        private final int mSampleSize;
+        private final int mColumn;
+        private final int mRow;
+        private final Bitmap mBitmap;
+    }
+    
+    
+    public static interface OnTileLoadListener {
+        public void onTileLoad(TileRequest r, Tile tile);
+        public void onTileLoadError(TileRequest r, Throwable e);
+    }
+    
 
     ////////HttpImageManager
     public HttpImageManager (BitmapCache cache,  BitmapCache persistence ) {
@@ -224,11 +420,37 @@ public class HttpImageManager{
     }
     
     
+    /**
+     * Pixel format to decode to, unless set on the request. ARGB_8888 by default. 
+     * With DecodeOptions.CONFIG_AUTO, images without alpha are decoded to RGB_565, 
+     * which takes half the memory.
+     * @param config
+     */
+    public void setPreferredConfig (Bitmap.Config config) {
+        mPreferredConfig = config;
+    }
+    
+    
+    public Bitmap.Config getPreferredConfig() {
+        return mPreferredConfig;
+    }
+    
+    
     public void setBitmapFilter (BitmapFilter filter) {
         mFilter = filter;
     }
     
     
+    /**
+     * Decode network images into bitmaps taken from the pool when possible. 
+     * To fill the pool, set it on the memory cache as well.
+     * @param pool null to disable
+     */
+    public void setBitmapPool (BitmapPool pool) {
+        mBitmapPool = pool;
+    }
+    
+    
     static public BitmapCache createDefaultMemoryCache() {
         return new BasicBitmapCache(DEFAULT_CACHE_SIZE);
     }
@@ -253,12 +475,22 @@ public class HttpImageManager{
             synchronized ( iv ) {
                 iv.setTag(r.getUri()); // bind URI to the ImageView, to prevent image write-back of earlier requests.
             }
+            
+            if (r.getTargetWidth() <= 0 && r.getTargetHeight() <= 0) {
+                r.setTargetSize(targetWidthOf(iv), targetHeightOf(iv));
+            }
+        }
+
+        if (!r.mConfigSet) {
+            r.setPreferredConfig(mPreferredConfig);
         }
 
-        String key = r.getHashedUri();
+        String key = r.getCacheKey();
 
-        if(mCache != null && mCache.exists(key)) {
-            return mCache.loadData(key);
+        // a single lookup, so an eviction can't slip in between a hit test and the load
+        Bitmap data = mCache != null ? mCache.peekData(key) : null;
+        if(data != null) {
+            return data;
         }
         else { 
             // not ready yet, try to retrieve it asynchronously.
@@ -268,6 +500,71 @@ public class HttpImageManager{
     }
 
 
+    /**
+     * Nonblocking call for images too large to be decoded whole, such as panoramas or scanned 
+     * documents. The image is split in tiles of TILE_SIZE pixels at the sample size of the request, 
+     * and only the tiles intersecting the viewport are decoded, with a RegionDecoder kept open 
+     * for the image. Decoded tiles are held in the memory cache under their own keys, so that 
+     * panning and zooming reuse them.
+     * 
+     * <p>
+     * Tiles not in memory are handed to the listener as they are decoded, in a worker thread. 
+     * A tile scheduled for an earlier request of the same image is skipped if it isn't 
+     * visible anymore, or handed to the listener of the latest request otherwise. Tiles still
+     * queued when the image is closed, or its decoder released by trimMemory(), are given up 
+     * without an error. An image found in the persistence is streamed to the decoder rather 
+     * than loaded in the heap.
+     * 
+     * @param r
+     * @return the tiles found in memory, none until the image has been opened
+     * @throws UnsupportedOperationException if the platform can't decode regions (before API 10)
+     */
+    public List<Tile> loadTiles(TileRequest r) {
+        if (r == null) 
+            throw new IllegalArgumentException("null request");
+        if (!RegionDecoder.isSupported()) 
+            throw new UnsupportedOperationException("region decoding requires API 10");
+        
+        String key = r.mSource.getHashedUri();
+        synchronized (mTileRequests) {
+            mTileRequests.put(key, r);
+        }
+        
+        List<Tile> tiles = new ArrayList<Tile>();
+        RegionDecoder decoder;
+        synchronized (mRegionDecoders) {
+            decoder = mRegionDecoders.get(key);
+        }
+        
+        if (decoder != null) {
+            scheduleTiles(r, decoder, tiles);
+        }
+        else {
+            mExecutor.execute(newOpenRegionCall(r));
+        }
+        return tiles;
+    }
+    
+    
+    /**
+     * Release the decoder kept open for the tiles of the image. Decoded tiles stay in 
+     * the memory cache.
+     */
+    public void closeTiles(Uri uri) {
+        String key = new LoadRequest(uri).getHashedUri();
+        synchronized (mTileRequests) {
+            mTileRequests.remove(key);
+        }
+        
+        RegionDecoder decoder;
+        synchronized (mRegionDecoders) {
+            decoder = mRegionDecoders.remove(key);
+        }
+        if (decoder != null) 
+            decoder.recycle();
+    }
+
+
     ////PRIVATE
     private Runnable newRequestCall(final LoadRequest request) {
         return new Runnable() {
@@ -298,22 +595,26 @@ public class HttpImageManager{
 
                 Bitmap data = null;
                 String key = request.getHashedUri();
+                String cacheKey = request.getCacheKey();
+                DecodeOptions options = new DecodeOptions(request.getTargetWidth(), request.getTargetHeight(), 
+                        mMaxNumOfPixelsConstraint, request.getPreferredConfig());
 
                 try {
                     //first we lookup memory cache
                     if (mCache != null)
-                        data = mCache.loadData(key);
+                        data = mCache.loadData(cacheKey);
 
                     if(data == null) {
                         if(DEBUG)  Log.d(TAG, "cache missing " + request.getUri().toString());
                         //then check the persistent storage
-                        data = mPersistence.loadData(key);
+                        data = loadPersistent(key, options);
                         if(data != null) {
                             if(DEBUG)  Log.d(TAG, "found in persistent: " + request.getUri().toString());
+                            data = scaleToTarget(request, data);
                             
                             // load it into memory
                             if (mCache != null)
-                                mCache.storeData(key, data);
+                                mCache.storeData(cacheKey, data);
 
                             fireLoadProgress(request, 1, 1); // fire progress done
                         }
@@ -322,41 +623,14 @@ public class HttpImageManager{
                             if(DEBUG)  Log.d(TAG, "go to network " + request.getUri().toString());
                             long millis = System.currentTimeMillis();
                             
-                            byte[] binary = null;
-                            HttpResponse httpResp = mNetworkResourceLoader.load(request.getUri());
-
-                            if(DEBUG) {
-                                Header[] headers = httpResp.getAllHeaders();
-                                for (Header header :headers) {
-                                    Log.i(TAG, header.toString());
-                                }
-                            }
-
-                            HttpEntity entity = httpResp.getEntity();
-                            if (entity != null) {
-                                InputStream responseStream = entity.getContent();
-                                try {
-                                    Header header = entity.getContentEncoding();
-                                    if (header != null && header.getValue() != null && header.getValue().contains("gzip")) {
-                                        responseStream =  new GZIPInputStream(responseStream);
-                                    }
-
-                                    responseStream = new FlushedInputStream(responseStream); //patch the inputstream
-                                    
-                                    long contentSize = entity.getContentLength();
-                                    binary = readInputStreamProgressively(responseStream, (int)contentSize, request);
-                                    data = BitmapUtil.decodeByteArray(binary, mMaxNumOfPixelsConstraint);
-                                } 
-                                finally {
-                                    if(responseStream != null) {
-                                        try { responseStream.close(); } catch (IOException e) {}
-                                    }
-                                }
-                            }
+                            byte[] binary = download(request);
+                            if (binary != null) 
+                                data = decodeDownloaded(key, binary, options);
 
                             if(data == null) 
                                 throw new RuntimeException("data from remote can't be decoded to bitmap");
 
+                            data = scaleToTarget(request, data);
                             if(DEBUG) Log.d(TAG, "decoded image: " + data.getWidth() + "x" + data.getHeight() );
                             if(DEBUG) Log.d(TAG, "time consumed: " + (System.currentTimeMillis() - millis));
 
@@ -371,7 +645,7 @@ public class HttpImageManager{
                             
                             // load it into memory
                             if (mCache != null)
-                                mCache.storeData(key, data);
+                                mCache.storeData(cacheKey, data);
 
                             // persist it. Save the file as-is, preserving the format.
                             mPersistence.storeData(key, binary);
@@ -416,6 +690,259 @@ public class HttpImageManager{
     }
 
 
+    /* Get the image, from the persistence or the network, and schedule the visible tiles. */
+    private Runnable newOpenRegionCall(final TileRequest request) {
+        return new Runnable() {
+
+            public void run() {
+                final LoadRequest source = request.mSource;
+                synchronized (mActiveRequests) {
+                    // the same URL may be downloading already
+                    while (mActiveRequests.contains(source)) {
+                        try {
+                            mActiveRequests.wait();
+                        } catch(InterruptedException e) {}
+                    }
+
+                    mActiveRequests.add(source);
+                }
+
+                String key = source.getHashedUri();
+                try {
+                    RegionDecoder decoder;
+                    synchronized (mRegionDecoders) {
+                        decoder = mRegionDecoders.get(key);
+                    }
+                    
+                    if (decoder == null) {
+                        decoder = openStoredRegion(key, source.getUri());
+                        if (decoder == null) {
+                            if(DEBUG)  Log.d(TAG, "go to network " + source.getUri().toString());
+                            byte[] binary = download(source);
+                            if (binary == null) 
+                                throw new IOException("no content for " + source.getUri());
+                            mPersistence.storeData(key, binary);
+                            
+                            decoder = RegionDecoder.newInstance(binary);
+                            if (decoder == null) 
+                                throw new IOException("regions can't be decoded from " + source.getUri());
+                        }
+                        
+                        if (!keepRegionDecoder(key, decoder)) {
+                            if(DEBUG) Log.d(TAG, "tiles closed while opening " + source.getUri());
+                            decoder.recycle();
+                            return;
+                        }
+                    }
+                    
+                    TileRequest current = currentTileRequest(key);
+                    if (current != null) 
+                        scheduleTiles(current, decoder, null);
+                }
+                catch (Throwable e) {
+                    fireTileLoadFailure(request, e);
+                    if(DEBUG) Log.e(TAG, "error opening " + source.getUri(), e);
+                }
+                finally{
+                    synchronized (mActiveRequests) {
+                        mActiveRequests.remove(source);
+                        mActiveRequests.notifyAll();
+                    }
+                }
+            }
+        };
+    }
+    
+    
+    /* 
+     * A decoder streaming the image from the persistence, without holding it in the heap. 
+     * @return null if the image isn't stored, or is found damaged and dropped
+     */
+    private RegionDecoder openStoredRegion(String key, Uri uri) throws IOException {
+        if (!(mPersistence instanceof EncodedBitmapCache)) 
+            return null;
+        InputStream in = ((EncodedBitmapCache) mPersistence).openBinary(key);
+        if (in == null) 
+            return null;
+        
+        RegionDecoder decoder;
+        try {
+            decoder = RegionDecoder.newInstance(in);
+            if (in instanceof EntryChecksum.VerifyingInputStream 
+                    && !((EntryChecksum.VerifyingInputStream) in).verify()) {
+                Log.w(TAG, "corrupted entry dropped: " + uri);
+                if (decoder != null) 
+                    decoder.recycle();
+                mPersistence.invalidate(key);
+                return null;
+            }
+        }
+        finally {
+            in.close();
+        }
+        
+        if (decoder == null) 
+            throw new IOException("regions can't be decoded from " + uri);
+        return decoder;
+    }
+    
+    
+    /*
+     * Tiles intersecting the viewport: those in memory go to atHand, or to the listener 
+     * if atHand is null, the others are decoded asynchronously.
+     */
+    private void scheduleTiles(TileRequest r, RegionDecoder decoder, List<Tile> atHand) {
+        Rect viewport = r.getViewport();
+        int left = Math.max(0, viewport.left);
+        int top = Math.max(0, viewport.top);
+        int right = Math.min(decoder.getWidth(), viewport.right);
+        int bottom = Math.min(decoder.getHeight(), viewport.bottom);
+        if (left >= right || top >= bottom) {
+            return;
+        }
+        
+        int sampleSize = r.getSampleSize();
+        int edge = TILE_SIZE * sampleSize;
+        Bitmap.Config config = mPreferredConfig;
+        if (config == DecodeOptions.CONFIG_AUTO) 
+            config = decoder.hasAlpha() ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
+        
+        for (int row = top / edge; row * edge < bottom; row++) {
+            for (int column = left / edge; column * edge < right; column++) {
+                Rect region = new Rect(column * edge, row * edge, 
+                        Math.min((column + 1) * edge, decoder.getWidth()), Math.min((row + 1) * edge, decoder.getHeight()));
+                String cacheKey = r.mSource.getHashedUri() + "-tile" + sampleSize + "-" + column + "-" + row 
+                        + (config != Bitmap.Config.ARGB_8888 ? "-" + config.name() : "");
+                
+                Bitmap data = mCache != null ? mCache.peekData(cacheKey) : null;
+                if (data != null) {
+                    Tile tile = new Tile(region, sampleSize, column, row, data);
+                    if (atHand != null) 
+                        atHand.add(tile);
+                    else 
+                        fireTileLoad(r, tile);
+                    continue;
+                }
+                
+                synchronized (mActiveTiles) {
+                    // already scheduled, by an earlier request
+                    if (!mActiveTiles.add(cacheKey)) 
+                        continue;
+                }
+                mExecutor.execute(newTileCall(r.mSource.getHashedUri(), cacheKey, decoder, 
+                        new Tile(region, sampleSize, column, row, null), config));
+            }
+        }
+    }
+    
+    
+    private Runnable newTileCall(final String key, final String cacheKey, final RegionDecoder decoder, 
+            final Tile tile, final Bitmap.Config config) {
+        return new Runnable() {
+
+            public void run() {
+                TileRequest current = currentTileRequest(key);
+                try {
+                    // if the viewport moved away from the tile, do nothing.
+                    if (current == null || current.getSampleSize() != tile.getSampleSize() 
+                            || !Rect.intersects(current.getViewport(), tile.getRegion())) {
+                        if(DEBUG)  Log.d(TAG, "give up tile: " + cacheKey);
+                        return;
+                    }
+                    
+                    Bitmap data = decoder.isRecycled() ? null : decodeTile(decoder, tile, config);
+                    if (data == null && decoder.isRecycled()) {
+                        // closed, or dropped to free memory: the tile is cancelled, and the 
+                        // next loadTiles() opens the image again
+                        if(DEBUG)  Log.d(TAG, "decoder recycled, give up tile: " + cacheKey);
+                        return;
+                    }
+                    if (data == null) 
+                        throw new RuntimeException("tile can't be decoded: " + tile.getRegion());
+                    
+                    if (mCache != null)
+                        mCache.storeData(cacheKey, data);
+                    
+                    fireTileLoad(current, new Tile(tile.getRegion(), tile.getSampleSize(), 
+                            tile.getColumn(), tile.getRow(), data));
+                }
+                catch (Throwable e) {
+                    fireTileLoadFailure(current, e);
+                    if(DEBUG) Log.e(TAG, "error decoding tile " + cacheKey, e);
+                }
+                finally {
+                    synchronized (mActiveTiles) {
+                        mActiveTiles.remove(cacheKey);
+                    }
+                }
+            }
+        };
+    }
+    
+    
+    /* 
+     * Decode a tile within the decode budget shared with whole images, retrying once 
+     * after freeing memory on OOM. 
+     */
+    private Bitmap decodeTile(RegionDecoder decoder, Tile tile, Bitmap.Config config) {
+        Rect region = tile.getRegion();
+        DecodeBudget budget = BitmapUtil.getDecodeBudget();
+        long cost = 0;
+        if (budget != null) {
+            cost = BitmapUtil.pixelBytes(region.width(), region.height(), tile.getSampleSize(), config);
+            budget.acquire(cost);
+        }
+        try {
+            try {
+                return decoder.decodeRegion(region, tile.getSampleSize(), config);
+            }
+            catch (OutOfMemoryError oom) {
+                Log.w(TAG, "out of memory decoding tile " + region + ", retrying");
+                releaseMemoryForDecode();
+                return decoder.decodeRegion(region, tile.getSampleSize(), config);
+            }
+        }
+        finally {
+            if (budget != null) 
+                budget.release(cost);
+        }
+    }
+    
+    
+    /* 
+     * Cache an opened decoder, unless closeTiles() came first. The decoders it pushes 
+     * out are recycled outside of the lock.
+     * @return false if the tiles were closed, the caller then recycles the decoder
+     */
+    private boolean keepRegionDecoder(String key, RegionDecoder decoder) {
+        List<RegionDecoder> evicted = new ArrayList<RegionDecoder>();
+        synchronized (mRegionDecoders) {
+            // checked under the lock: closeTiles() removes the request before the decoder
+            if (currentTileRequest(key) == null) 
+                return false;
+            
+            mRegionDecoders.put(key, decoder);
+            Iterator<RegionDecoder> it = mRegionDecoders.values().iterator();
+            while (mRegionDecoders.size() > MAX_REGION_DECODERS) {
+                evicted.add(it.next());
+                it.remove();
+            }
+        }
+        
+        for (RegionDecoder d : evicted) {
+            d.recycle();
+        }
+        return true;
+    }
+    
+    
+    private TileRequest currentTileRequest(String key) {
+        synchronized (mTileRequests) {
+            return mTileRequests.get(key);
+        }
+    }
+
+
     /**
      * Make memory cache empty, release all bitmap reference held. 
      */
@@ -425,6 +952,33 @@ public class HttpImageManager{
     }
 
 
+    /**
+     * Release part of the memory held by the caches, according to the severity level. 
+     * To be called from the application's onLowMemory()/onTrimMemory().
+     * @param level one of BitmapCache.TRIM_MEMORY_XXX
+     */
+    public void trimMemory (int level) {
+        if (mCache != null) 
+            mCache.trimMemory(level);
+        mPersistence.trimMemory(level);
+        
+        if (mBitmapPool != null) 
+            mBitmapPool.trimToSize(TrimPolicy.trimmedSize(mBitmapPool.getSize(), level));
+        
+        if (level >= BitmapCache.TRIM_MEMORY_BACKGROUND) {
+            // reopened on the next loadTiles()
+            List<RegionDecoder> decoders;
+            synchronized (mRegionDecoders) {
+                decoders = new ArrayList<RegionDecoder>(mRegionDecoders.values());
+                mRegionDecoders.clear();
+            }
+            for (RegionDecoder decoder : decoders) {
+                decoder.recycle();
+            }
+        }
+    }
+
+
     /**
      * Remove the persistent data. This is a blocking call. 
      */
@@ -435,6 +989,115 @@ public class HttpImageManager{
 
 
     ////////PRIVATE
+    /* The size an ImageView displays at, once laid out, or as set in its layout parameters. */
+    private static int targetWidthOf(ImageView iv) {
+        int width = iv.getWidth() - iv.getPaddingLeft() - iv.getPaddingRight();
+        if (width <= 0 && iv.getLayoutParams() != null) 
+            width = iv.getLayoutParams().width; // negative when MATCH_PARENT/WRAP_CONTENT
+        return width > 0 ? width : UNCONSTRAINED;
+    }
+    
+    
+    private static int targetHeightOf(ImageView iv) {
+        int height = iv.getHeight() - iv.getPaddingTop() - iv.getPaddingBottom();
+        if (height <= 0 && iv.getLayoutParams() != null) 
+            height = iv.getLayoutParams().height;
+        return height > 0 ? height : UNCONSTRAINED;
+    }
+    
+    
+    /* Decode from the persistent storage, retrying once after freeing memory on OOM. */
+    private Bitmap loadPersistent(String key, DecodeOptions options) {
+        try {
+            return DecodeOptions.load(mPersistence, key, options);
+        }
+        catch (OutOfMemoryError oom) {
+            Log.w(TAG, "out of memory decoding " + key + ", retrying");
+            releaseMemoryForDecode();
+            return DecodeOptions.load(mPersistence, key, options);
+        }
+    }
+    
+    
+    /* 
+     * Decode the downloaded binary, retrying once after freeing memory on OOM. 
+     * If the retry fails too the binary is persisted anyway, so it isn't downloaded again.
+     */
+    private Bitmap decodeDownloaded(String key, byte[] binary, DecodeOptions options) {
+        try {
+            return BitmapUtil.decodeByteArray(binary, options, mBitmapPool);
+        }
+        catch (OutOfMemoryError oom) {
+            Log.w(TAG, "out of memory decoding " + key + ", retrying");
+            releaseMemoryForDecode();
+            try {
+                return BitmapUtil.decodeByteArray(binary, options, mBitmapPool);
+            }
+            catch (OutOfMemoryError e) {
+                mPersistence.storeData(key, binary);
+                throw e;
+            }
+        }
+    }
+    
+    
+    private void releaseMemoryForDecode() {
+        if (mCache != null) 
+            mCache.trimMemory(BitmapCache.TRIM_MEMORY_MODERATE);
+        if (mBitmapPool != null) 
+            mBitmapPool.clear();
+    }
+    
+    
+    private Bitmap scaleToTarget(LoadRequest r, Bitmap bitmap) {
+        if (!r.mScaleToTarget) {
+            return bitmap;
+        }
+        
+        Bitmap scaled = BitmapUtil.scaleToFit(bitmap, r.getTargetWidth(), r.getTargetHeight());
+        if (scaled != bitmap && mBitmapPool != null) {
+            mBitmapPool.put(bitmap);
+        }
+        return scaled;
+    }
+    
+    
+    /* The encoded image, or null if the response has no content. */
+    private byte[] download(LoadRequest request) throws IOException {
+        HttpResponse httpResp = mNetworkResourceLoader.load(request.getUri());
+
+        if(DEBUG) {
+            Header[] headers = httpResp.getAllHeaders();
+            for (Header header :headers) {
+                Log.i(TAG, header.toString());
+            }
+        }
+
+        HttpEntity entity = httpResp.getEntity();
+        if (entity == null) {
+            return null;
+        }
+        
+        InputStream responseStream = entity.getContent();
+        try {
+            Header header = entity.getContentEncoding();
+            if (header != null && header.getValue() != null && header.getValue().contains("gzip")) {
+                responseStream =  new GZIPInputStream(responseStream);
+            }
+
+            responseStream = new FlushedInputStream(responseStream); //patch the inputstream
+            
+            long contentSize = entity.getContentLength();
+            return readInputStreamProgressively(responseStream, (int)contentSize, request);
+        } 
+        finally {
+            if(responseStream != null) {
+                try { responseStream.close(); } catch (IOException e) {}
+            }
+        }
+    }
+    
+    
     private byte[] readInputStreamProgressively (InputStream is, int totalSize, LoadRequest r) 
             throws IOException {
 
@@ -508,9 +1171,30 @@ public class HttpImageManager{
             catch (Throwable t) {}
         }
     }
+    
+    
+    private void fireTileLoad(final TileRequest r, final Tile tile) {
+        if ( r.mListener != null) {
+            try {
+                r.mListener.onTileLoad(r, tile);
+            }
+            catch (Throwable t) {}
+        }
+    }
+    
+    
+    private void fireTileLoadFailure(final TileRequest r, final Throwable e) {
+        if ( r != null && r.mListener != null) {
+            try {
+                r.mListener.onTileLoadError(r, e);
+            }
+            catch (Throwable t) {}
+        }
+    }
 
 
     private int mMaxNumOfPixelsConstraint = DECODING_MAX_PIXELS_DEFAULT;
+    private Bitmap.Config mPreferredConfig = Bitmap.Config.ARGB_8888;
     private BitmapCache mCache;
     private BitmapCache mPersistence;
     private NetworkResourceLoader mNetworkResourceLoader = new NetworkResourceLoader(); 
@@ -519,6 +1203,12 @@ public class HttpImageManager{
     private ThreadPoolExecutor mExecutor = new ThreadPoolExecutor(1, 4, 10, TimeUnit.SECONDS, new LinkedBlockingStack<Runnable>());
     private Set<LoadRequest> mActiveRequests = new HashSet<LoadRequest>();
     private BitmapFilter mFilter;
+    private BitmapPool mBitmapPool;
+    
+    private Map<String, TileRequest> mTileRequests = new HashMap<String, TileRequest>();
+    private Set<String> mActiveTiles = new HashSet<String>();
+    // in access order, trimmed to MAX_REGION_DECODERS by keepRegionDecoder()
+    private Map<String, RegionDecoder> mRegionDecoders = new LinkedHashMap<String, RegionDecoder>(4, 0.75f, true);
 
     
     /*
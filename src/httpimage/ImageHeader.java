@@ -0,0 +1,310 @@
+//  Copyright 2012 Zonghai Li. All rights reserved.
+//
+//  Redistribution and use in binary and source forms, with or without modification,
+//  are permitted for any project, commercial or otherwise, provided that the
+//  following conditions are met:
+//  
+//  Redistributions in binary form must display the copyright notice in the About
+//  view, website, and/or documentation.
+//  
+//  Redistributions of source code must retain the copyright notice, this list of
+//  conditions, and the following disclaimer.
+//
+//  THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+//  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+//  PARTICULAR PURPOSE AND NONINFRINGEMENT OF THIRD PARTY RIGHTS. IN NO EVENT SHALL THE
+//  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+//  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+//  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THIS SOFTWARE.
+
+
+package httpimage;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * Dimensions, format and alpha of an image, read from its header in plain Java.
+ * Knows JPEG (SOFn marker), PNG (IHDR, tRNS), GIF and WebP (VP8, VP8L, VP8X).
+ * Only the bytes up to the dimensions are read, segments in between are skipped,
+ * so the body of the image doesn't need to be there yet.
+ *
+ * @author zonghai@gmail.com
+ */
+public class ImageHeader {
+
+    public static final String MIME_JPEG = "image/jpeg";
+    public static final String MIME_PNG = "image/png";
+    public static final String MIME_GIF = "image/gif";
+    public static final String MIME_WEBP = "image/webp";
+
+
+    /**
+     * Parse the header of the image found at [offset, offset + length) of data.
+     * @return null if the format isn't known or the header is truncated
+     */
+    public static ImageHeader parse(byte[] data, int offset, int length) {
+        if (data == null) return null;
+        try {
+            return read(new ByteArrayInputStream(data, offset, length));
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+
+    /**
+     * Read the header from the stream, which is left somewhere after it. Mark the
+     * stream first to decode it afterwards.
+     * @return null if the format isn't known or the header is truncated
+     * @throws IOException error reading the stream
+     */
+    public static ImageHeader read(InputStream is) throws IOException {
+        try {
+            int b0 = is.read();
+            int b1 = is.read();
+            if (b0 == 0xFF && b1 == 0xD8)
+                return readJpeg(is);
+            if (b0 == 0x89 && b1 == 'P')
+                return readPng(is);
+            if (b0 == 'G' && b1 == 'I')
+                return readGif(is);
+            if (b0 == 'R' && b1 == 'I')
+                return readWebp(is);
+            return null;
+        }
+        catch (EOFException e) {
+            return null;
+        }
+    }
+
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+
+    /**
+     * One of the MIME_XXX types, as BitmapFactory.Options.outMimeType
+     */
+    public String getMimeType() {
+        return mMimeType;
+    }
+
+
+    /**
+     * Whether the image may have transparent pixels. True when the header can't tell.
+     */
+    public boolean hasAlpha() {
+        return mHasAlpha;
+    }
+
+
+    @Override
+    public String toString() {
+        return mMimeType + " " + mWidth + "x" + mHeight + (mHasAlpha ? " alpha" : "");
+    }
+
+
+    ////////PRIVATE
+    private ImageHeader(String mimeType, int width, int height, boolean hasAlpha) {
+        mMimeType = mimeType;
+        mWidth = width;
+        mHeight = height;
+        mHasAlpha = hasAlpha;
+    }
+
+
+    private static ImageHeader valid(String mimeType, int width, int height, boolean hasAlpha) {
+        return width > 0 && height > 0 ? new ImageHeader(mimeType, width, height, hasAlpha) : null;
+    }
+
+
+    /* Segments up to the start of frame, which has the dimensions. */
+    private static ImageHeader readJpeg(InputStream is) throws IOException {
+        while (true) {
+            if (readByte(is) != 0xFF)
+                return null;
+            int marker = readByte(is);
+            while (marker == 0xFF) { // fill bytes
+                marker = readByte(is);
+            }
+
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD8)) {
+                continue; // no payload
+            }
+            if (marker == 0xD9 || marker == 0xDA) {
+                return null; // end of image or start of scan, without a frame
+            }
+
+            int length = readUInt16BE(is);
+            if (length < 2)
+                return null;
+
+            if (isStartOfFrame(marker)) {
+                readByte(is); // precision
+                int height = readUInt16BE(is);
+                int width = readUInt16BE(is);
+                return valid(MIME_JPEG, width, height, false);
+            }
+            skip(is, length - 2);
+        }
+    }
+
+
+    private static boolean isStartOfFrame(int marker) {
+        // C4 (DHT), C8 (JPG) and CC (DAC) share the range but aren't frames.
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+
+    /* IHDR, then chunks up to the image data, looking for tRNS. */
+    private static ImageHeader readPng(InputStream is) throws IOException {
+        if (readByte(is) != 'N' || readByte(is) != 'G')
+            return null;
+        skip(is, 4); // \r\n\032\n
+
+        skip(is, 4); // IHDR length
+        if (readUInt32BE(is) != chunkType("IHDR"))
+            return null;
+        int width = (int) readUInt32BE(is);
+        int height = (int) readUInt32BE(is);
+        readByte(is); // bit depth
+        int colorType = readByte(is);
+        skip(is, 3 + 4); // compression, filter, interlace, crc
+
+        if ((colorType & 4) != 0) { // gray or truecolor with alpha
+            return valid(MIME_PNG, width, height, true);
+        }
+
+        // palette, gray and truecolor get alpha from a tRNS chunk, which comes before IDAT
+        try {
+            while (true) {
+                long length = readUInt32BE(is);
+                long type = readUInt32BE(is);
+                if (type == chunkType("tRNS"))
+                    return valid(MIME_PNG, width, height, true);
+                if (type == chunkType("IDAT") || type == chunkType("IEND"))
+                    return valid(MIME_PNG, width, height, false);
+                skip(is, length + 4);
+            }
+        }
+        catch (EOFException e) {
+            // can't tell
+            return valid(MIME_PNG, width, height, true);
+        }
+    }
+
+
+    private static ImageHeader readGif(InputStream is) throws IOException {
+        if (readByte(is) != 'F' || readByte(is) != '8')
+            return null;
+        skip(is, 2); // 7a or 9a
+        int width = readUInt16LE(is);
+        int height = readUInt16LE(is);
+        // transparency is set per frame, in the extensions
+        return valid(MIME_GIF, width, height, true);
+    }
+
+
+    private static ImageHeader readWebp(InputStream is) throws IOException {
+        if (readByte(is) != 'F' || readByte(is) != 'F')
+            return null;
+        skip(is, 4); // RIFF size
+        if (readUInt32BE(is) != chunkType("WEBP"))
+            return null;
+
+        long chunk = readUInt32BE(is);
+        skip(is, 4); // chunk size
+
+        if (chunk == chunkType("VP8 ")) { // lossy
+            skip(is, 3); // frame tag
+            if (readByte(is) != 0x9D || readByte(is) != 0x01 || readByte(is) != 0x2A)
+                return null;
+            int width = readUInt16LE(is) & 0x3FFF;
+            int height = readUInt16LE(is) & 0x3FFF;
+            return valid(MIME_WEBP, width, height, false);
+        }
+
+        if (chunk == chunkType("VP8L")) { // lossless
+            if (readByte(is) != 0x2F)
+                return null;
+            long bits = readByte(is) | (readByte(is) << 8) | (readByte(is) << 16) | ((long) readByte(is) << 24);
+            int width = (int) (bits & 0x3FFF) + 1;
+            int height = (int) ((bits >> 14) & 0x3FFF) + 1;
+            boolean hasAlpha = ((bits >> 28) & 1) != 0;
+            return valid(MIME_WEBP, width, height, hasAlpha);
+        }
+
+        if (chunk == chunkType("VP8X")) { // extended
+            int flags = readByte(is);
+            skip(is, 3);
+            int width = readUInt24LE(is) + 1;
+            int height = readUInt24LE(is) + 1;
+            return valid(MIME_WEBP, width, height, (flags & 0x10) != 0);
+        }
+
+        return null;
+    }
+
+
+    private static long chunkType(String fourcc) {
+        return ((long) fourcc.charAt(0) << 24) | (fourcc.charAt(1) << 16) | (fourcc.charAt(2) << 8) | fourcc.charAt(3);
+    }
+
+
+    private static int readByte(InputStream is) throws IOException {
+        int b = is.read();
+        if (b < 0)
+            throw new EOFException();
+        return b;
+    }
+
+
+    private static int readUInt16BE(InputStream is) throws IOException {
+        return (readByte(is) << 8) | readByte(is);
+    }
+
+
+    private static int readUInt16LE(InputStream is) throws IOException {
+        return readByte(is) | (readByte(is) << 8);
+    }
+
+
+    private static int readUInt24LE(InputStream is) throws IOException {
+        return readByte(is) | (readByte(is) << 8) | (readByte(is) << 16);
+    }
+
+
+    private static long readUInt32BE(InputStream is) throws IOException {
+        return ((long) readUInt16BE(is) << 16) | readUInt16BE(is);
+    }
+
+
+    private static void skip(InputStream is, long count) throws IOException {
+        while (count > 0) {
+            long skipped = is.skip(count);
+            if (skipped <= 0) {
+                // skip() may stop short of the end, read a byte to tell
+                readByte(is);
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+
+    private final String mMimeType;
+    private final int mWidth;
+    private final int mHeight;
+    private final boolean mHasAlpha;
+}
@@ -0,0 +1,273 @@
+//  Copyright 2012 Zonghai Li. All rights reserved.
+//
+//  Redistribution and use in binary and source forms, with or without modification,
+//  are permitted for any project, commercial or otherwise, provided that the
+//  following conditions are met:
+//  
+//  Redistributions in binary form must display the copyright notice in the About
+//  view, website, and/or documentation.
+//  
+//  Redistributions of source code must retain the copyright notice, this list of
+//  conditions, and the following disclaimer.
+//
+//  THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+//  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+//  PARTICULAR PURPOSE AND NONINFRINGEMENT OF THIRD PARTY RIGHTS. IN NO EVENT SHALL THE
+//  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+//  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+//  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THIS SOFTWARE.
+
+
+package httpimage;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.os.Build;
+import android.util.Log;
+
+
+/**
+ * Decodes rectangular regions of an image, for images too large to be decoded whole. 
+ * Wraps BitmapRegionDecoder, which only exists since API 10 and is reached by reflection. 
+ * JPEG and PNG are supported.
+ * 
+ * <p>
+ * Decodes run one at a time. recycle() doesn't wait for the one in progress: the decoder 
+ * is marked recycled, and the native decoder is released by the decoding thread once it 
+ * is done, so that the UI thread never blocks behind a tile.
+ * 
+ * @author zonghai@gmail.com
+ */
+public class RegionDecoder {
+
+    private static final String TAG = "RegionDecoder";
+    private static final boolean DEBUG = false;
+    
+    // how far into a stream the header is looked for
+    private static final int MARK_LIMIT = 256 * 1024;
+    
+    // BitmapRegionDecoder only exists since API 10
+    private static final Method NEW_INSTANCE;
+    private static final Method NEW_INSTANCE_FROM_STREAM;
+    private static final Method DECODE_REGION;
+    private static final Method RECYCLE;
+    
+    static {
+        Method newInstance = null;
+        Method newInstanceFromStream = null;
+        Method decodeRegion = null;
+        Method recycle = null;
+        if (Build.VERSION.SDK_INT >= 10) {
+            try {
+                Class<?> clazz = Class.forName("android.graphics.BitmapRegionDecoder");
+                newInstance = clazz.getMethod("newInstance", byte[].class, int.class, int.class, boolean.class);
+                newInstanceFromStream = clazz.getMethod("newInstance", InputStream.class, boolean.class);
+                decodeRegion = clazz.getMethod("decodeRegion", Rect.class, BitmapFactory.Options.class);
+                recycle = clazz.getMethod("recycle");
+            } catch (ClassNotFoundException e) {
+                newInstance = null;
+            } catch (NoSuchMethodException e) {
+                newInstance = null;
+            }
+        }
+        NEW_INSTANCE = newInstance;
+        NEW_INSTANCE_FROM_STREAM = newInstanceFromStream;
+        DECODE_REGION = decodeRegion;
+        RECYCLE = recycle;
+    }
+    
+    
+    public static boolean isSupported() {
+        return NEW_INSTANCE != null;
+    }
+    
+    
+    /**
+     * @param data the encoded image, which is held until recycle()
+     * @return null if region decoding isn't supported on this platform, or for the format of data
+     * @throws IOException if data can't be decoded
+     */
+    public static RegionDecoder newInstance(byte[] data) throws IOException {
+        ImageHeader header = ImageHeader.parse(data, 0, data.length);
+        if (!isSupported() || header == null 
+                || !(ImageHeader.MIME_JPEG.equals(header.getMimeType()) || ImageHeader.MIME_PNG.equals(header.getMimeType()))) {
+            return null;
+        }
+        
+        Object decoder = invoke(NEW_INSTANCE, null, data, 0, data.length, false);
+        if (decoder == null) {
+            throw new IOException("can't decode regions of " + header);
+        }
+        if(DEBUG) Log.d(TAG, "region decoder for " + header);
+        return new RegionDecoder(decoder, header);
+    }
+    
+    
+    /**
+     * Stream the encoded image to the native decoder, so that it isn't held in the Java 
+     * heap. The stream is read to its end; the caller closes it.
+     * @return null if region decoding isn't supported on this platform, or for the format of the image
+     * @throws IOException if the image can't be read or decoded
+     */
+    public static RegionDecoder newInstance(InputStream is) throws IOException {
+        if (!isSupported()) {
+            return null;
+        }
+        
+        InputStream in = new BufferedInputStream(is, 16 * 1024);
+        in.mark(MARK_LIMIT);
+        ImageHeader header = ImageHeader.read(in);
+        in.reset();
+        in.mark(0); // not to hold the whole image in the buffer
+        if (header == null 
+                || !(ImageHeader.MIME_JPEG.equals(header.getMimeType()) || ImageHeader.MIME_PNG.equals(header.getMimeType()))) {
+            return null;
+        }
+        
+        Object decoder = invoke(NEW_INSTANCE_FROM_STREAM, null, in, false);
+        if (decoder == null) {
+            throw new IOException("can't decode regions of " + header);
+        }
+        if(DEBUG) Log.d(TAG, "region decoder for " + header + ", streamed");
+        return new RegionDecoder(decoder, header);
+    }
+    
+    
+    public int getWidth() {
+        return mHeader.getWidth();
+    }
+    
+    
+    public int getHeight() {
+        return mHeader.getHeight();
+    }
+    
+    
+    public boolean hasAlpha() {
+        return mHeader.hasAlpha();
+    }
+    
+    
+    /**
+     * Decode a region of the image.
+     * @param region in pixels of the full image
+     * @param sampleSize subsampling, a power of 2
+     * @param config pixel format
+     * @return null once recycled, or if the region can't be decoded
+     */
+    public Bitmap decodeRegion(Rect region, int sampleSize, Bitmap.Config config) {
+        Object decoder;
+        synchronized (this) {
+            if (mRecycled) {
+                return null;
+            }
+            decoder = mDecoder;
+            mDecodeCount++;
+        }
+        
+        try {
+            synchronized (mDecodeLock) {
+                if (isRecycled()) 
+                    return null; // recycled while waiting for the previous decode
+                
+                BitmapFactory.Options option = new BitmapFactory.Options();
+                option.inSampleSize = sampleSize;
+                option.inPreferredConfig = config;
+                try {
+                    return (Bitmap) invoke(DECODE_REGION, decoder, region, option);
+                } catch (IOException e) {
+                    Log.w(TAG, e);
+                    return null;
+                }
+            }
+        }
+        finally {
+            Object released = null;
+            synchronized (this) {
+                if (--mDecodeCount == 0 && mRecycled) {
+                    released = mDecoder;
+                    mDecoder = null;
+                }
+            }
+            release(released);
+        }
+    }
+    
+    
+    public synchronized boolean isRecycled() {
+        return mRecycled;
+    }
+    
+    
+    /**
+     * Release the native decoder and the data it holds. Doesn't block: if a region is 
+     * being decoded, the decoder is released when that is done.
+     */
+    public void recycle() {
+        Object released = null;
+        synchronized (this) {
+            if (mRecycled) {
+                return;
+            }
+            mRecycled = true;
+            if (mDecodeCount == 0) {
+                released = mDecoder;
+                mDecoder = null;
+            }
+        }
+        release(released);
+    }
+    
+    
+    ////////PRIVATE
+    private RegionDecoder(Object decoder, ImageHeader header) {
+        mDecoder = decoder;
+        mHeader = header;
+    }
+    
+    
+    private static void release(Object decoder) {
+        if (decoder != null) {
+            try {
+                invoke(RECYCLE, decoder);
+            } catch (IOException e) {
+                Log.w(TAG, e);
+            }
+        }
+    }
+    
+    
+    /* Unwrap what the method threw, errors such as OutOfMemoryError are passed as is. */
+    private static Object invoke(Method method, Object receiver, Object... args) throws IOException {
+        try {
+            return method.invoke(receiver, args);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) 
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException) 
+                throw (RuntimeException) cause;
+            if (cause instanceof Error) 
+                throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+    
+    
+    private final ImageHeader mHeader;
+    private final Object mDecodeLock = new Object();
+    
+    // guarded by this; the decoder is released by whichever of recycle() and the last decode comes last
+    private Object mDecoder;
+    private boolean mRecycled;
+    private int mDecodeCount;
+}
@@ -0,0 +1,574 @@
+//  Copyright 2012 Zonghai Li. All rights reserved.
+//
+//  Redistribution and use in binary and source forms, with or without modification,
+//  are permitted for any project, commercial or otherwise, provided that the
+//  following conditions are met:
+//  
+//  Redistributions in binary form must display the copyright notice in the About
+//  view, website, and/or documentation.
+//  
+//  Redistributions of source code must retain the copyright notice, this list of
+//  conditions, and the following disclaimer.
+//
+//  THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+//  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+//  PARTICULAR PURPOSE AND NONINFRINGEMENT OF THIRD PARTY RIGHTS. IN NO EVENT SHALL THE
+//  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+//  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+//  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THIS SOFTWARE.
+
+
+package httpimage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.Log;
+
+
+/**
+ * Persistent storage in an SQLite database opened directly, in the DBImageTable schema.
+ * 
+ * <p>
+ * Unlike DBPersistence there's no ContentResolver in between. storeData() queues the 
+ * data and returns; a committer thread waits COMMIT_WINDOW_MS for more to arrive, then 
+ * writes everything queued in a single transaction with a compiled INSERT statement, so 
+ * a page of prefetched images costs one commit instead of one per image. Accesses 
+ * recorded by loadData() go in the same transactions. Data still queued is served from 
+ * the queue. Call close() before the process goes away, so that queued data is committed.
+ * 
+ * <p>
+ * When given a budget, the least recently used rows are deleted in bulk once the total 
+ * size exceeds it, down to PRUNE_TARGET of the budget.
+ * 
+ * <p>
+ * As with DBPersistence, images larger than the external threshold are stored in files
+ * under the cache directory and streamed to the decoder.
+ * 
+ * <p>
+ * Blobs start with the length and CRC32 of the data (see EntryChecksum). A row that 
+ * fails the check when loaded is deleted and reported as missing.
+ * 
+ * @author zonghai@gmail.com
+ */
+public class SQLitePersistence implements DecodingBitmapCache {
+    
+    private static final String TAG = "SQLitePersistence";
+    private static final boolean DEBUG = false;
+    
+    public static final long UNBOUNDED = -1;
+    public static final String DEFAULT_DATABASE_NAME = "httpimage_direct.db";
+    
+    private static final long COMMIT_WINDOW_MS = 100;
+    private static final int MAX_BATCH_SIZE = 64;
+    private static final float PRUNE_TARGET = 0.9f;
+    
+    // check the total size each time this fraction of the budget has been stored
+    private static final int PRUNE_CHECK_DIVISOR = 16;
+    
+    private static final String INSERT_SQL = "INSERT OR REPLACE INTO " + DBImageTable.TABLE + " (" 
+            + DBImageTable.NAME + "," + DBImageTable.DATA + "," + DBImageTable.PATH + "," 
+            + DBImageTable.SIZE + "," + DBImageTable.TIMESTAMP + "," + DBImageTable.NUSE 
+            + ") VALUES (?,?,?,?,?,1)";
+    
+    private static final String TOUCH_SQL = "UPDATE " + DBImageTable.TABLE + " SET " 
+            + DBImageTable.TIMESTAMP + "=?," + DBImageTable.NUSE + "=" + DBImageTable.NUSE + "+? WHERE " 
+            + DBImageTable.NAME + "=?";
+    
+    
+    public SQLitePersistence(Context context) {
+        this(context, DEFAULT_DATABASE_NAME, UNBOUNDED);
+    }
+    
+    
+    /**
+     * @param context
+     * @param name database file name
+     * @param maxBytes budget for the stored data, or UNBOUNDED
+     */
+    public SQLitePersistence(Context context, String name, long maxBytes) {
+        mHelper = new DBImageOpenHelper(context, name);
+        mBlobs = new BlobFileStore(new File(context.getCacheDir(), name + "_blobs"));
+        mMaxSize = maxBytes;
+        // the table may be over budget already
+        mStoredSinceCheck = maxBytes;
+        
+        mCommitter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                commitLoop();
+            }
+        }, TAG);
+        mCommitter.setDaemon(true);
+        mCommitter.start();
+    }
+    
+    
+    /**
+     * Decode into bitmaps taken from the pool when possible.
+     * @param pool null to disable
+     */
+    public void setBitmapPool (BitmapPool pool) {
+        mBitmapPool = pool;
+    }
+    
+    
+    /**
+     * Size above which images are stored in files rather than in the table. 
+     * @param bytes
+     */
+    public void setExternalThreshold (int bytes) {
+        mExternalThreshold = bytes;
+    }
+    
+    
+    @Override
+    public boolean exists(String key) {
+        synchronized (mLock) {
+            if (queuedData(key) != null) 
+                return true;
+        }
+        return DatabaseUtils.longForQuery(mHelper.getReadableDatabase(), 
+                "SELECT count(*) FROM " + DBImageTable.TABLE + " WHERE " + DBImageTable.NAME + "=?", 
+                new String[] {key}) > 0;
+    }
+
+    
+    @Override
+    public Bitmap loadData(String key) {
+        return loadData(key, DecodeOptions.DEFAULT);
+    }
+
+    
+    @Override
+    public Bitmap loadData(String key, DecodeOptions options) {
+        byte[] queued;
+        synchronized (mLock) {
+            queued = queuedData(key);
+        }
+        
+        if (queued != null) {
+            return BitmapUtil.decodeByteArray(queued, options, mBitmapPool);
+        }
+        
+        byte[] blob = null;
+        String path = null;
+        Cursor c = mHelper.getReadableDatabase().query(DBImageTable.TABLE, 
+                new String[] {DBImageTable.PATH, DBImageTable.DATA}, DBImageTable.NAME + "=?", 
+                new String[] {key}, null, null, null);
+        try {
+            if (!c.moveToFirst()) 
+                return null;
+            path = c.getString(0);
+            if (path == null) 
+                blob = c.getBlob(1);
+        }
+        finally {
+            c.close();
+        }
+        
+        Bitmap bitmap = null;
+        boolean corrupted;
+        if (path != null) {
+            try {
+                bitmap = mBlobs.decode(path, options, mBitmapPool);
+                corrupted = false;
+            }
+            catch (FileNotFoundException e) {
+                // the cache directory was cleaned up
+                if (DEBUG) Log.d(TAG, "file gone: " + path);
+                invalidate(key);
+                return null;
+            }
+            catch (IOException e) {
+                Log.w(TAG, e);
+                corrupted = true;
+            }
+        }
+        else {
+            int offset = blob == null ? EntryChecksum.CORRUPTED : EntryChecksum.dataOffset(blob);
+            if (offset != EntryChecksum.CORRUPTED) {
+                bitmap = BitmapUtil.decodeByteArray(blob, offset, blob.length - offset, 
+                        options, mBitmapPool);
+            }
+            
+            // a verified blob that doesn't decode is left alone, the decoder may just be out of memory.
+            corrupted = offset == EntryChecksum.CORRUPTED || (bitmap == null && offset == 0);
+        }
+        
+        if (corrupted) {
+            Log.w(TAG, "corrupted entry dropped: " + key);
+            synchronized (mLock) {
+                mCorruptionCount++;
+            }
+            invalidate(key);
+            return null;
+        }
+        
+        if (bitmap != null) {
+            recordAccess(key);
+        }
+        return bitmap;
+    }
+
+    
+    @Override
+    public Bitmap peekData(String key) {
+        return null; // only available through a DB query
+    }
+
+    
+    @Override
+    public void storeData(String key, Object data) {
+        byte[] binary = (byte[]) data;
+        if (binary == null) {
+            return;
+        }
+        synchronized (mLock) {
+            if (mClosed) 
+                return;
+            // the committer is far behind
+            while (mPendingWrites.size() >= 4 * MAX_BATCH_SIZE) {
+                waitLock(0);
+            }
+            mPendingWrites.remove(key); // keep the order of arrival
+            mPendingWrites.put(key, binary);
+            mPendingAccesses.remove(key);
+            mLock.notifyAll();
+        }
+    }
+
+    
+    @Override
+    public void invalidate(String key) {
+        synchronized (mLock) {
+            mPendingWrites.remove(key);
+            mPendingAccesses.remove(key);
+            // let a commit in progress complete, so that it is invalidated too
+            while (mCommitting != null && mCommitting.containsKey(key)) {
+                waitLock(0);
+            }
+        }
+        mHelper.getWritableDatabase().delete(DBImageTable.TABLE, DBImageTable.NAME + "=?", new String[] {key});
+        mBlobs.delete(key);
+    }
+
+    
+    @Override
+    public void clear() {
+        synchronized (mLock) {
+            mPendingWrites.clear();
+            mPendingAccesses.clear();
+            while (mCommitting != null) {
+                waitLock(0);
+            }
+        }
+        mHelper.getWritableDatabase().delete(DBImageTable.TABLE, null, null);
+        mBlobs.clear();
+    }
+    
+    
+    @Override
+    public void trimMemory(int level) {
+        // nothing held in memory, but the application is going away: commit without waiting
+        if (level >= TRIM_MEMORY_BACKGROUND) {
+            synchronized (mLock) {
+                mCommitNow = true;
+                mLock.notifyAll();
+            }
+        }
+    }
+    
+    
+    /**
+     * Block until everything queued so far is committed.
+     */
+    public void flush() {
+        synchronized (mLock) {
+            mCommitNow = true;
+            mLock.notifyAll();
+            while (!mPendingWrites.isEmpty() || !mPendingAccesses.isEmpty() || mCommitting != null) {
+                waitLock(0);
+            }
+        }
+    }
+    
+    
+    /**
+     * Commit everything queued, stop the committer thread and close the database. 
+     * Later stores are dropped. This is a blocking call.
+     */
+    public void close() {
+        synchronized (mLock) {
+            mClosed = true;
+            mCommitNow = true;
+            mLock.notifyAll();
+        }
+        
+        boolean interrupted = false;
+        while (mCommitter.isAlive()) {
+            try {
+                mCommitter.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) 
+            Thread.currentThread().interrupt();
+        
+        mHelper.close();
+        if(DEBUG) Log.d(TAG, "closed");
+    }
+    
+    
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+    
+    
+    /**
+     * Number of entries found damaged, and dropped, when loaded
+     */
+    public int getCorruptionCount() {
+        synchronized (mLock) {
+            return mCorruptionCount;
+        }
+    }
+    
+    
+    ////////PRIVATE
+    /* Data not committed yet. Call with the lock held. */
+    private byte[] queuedData(String key) {
+        byte[] data = mPendingWrites.get(key);
+        if (data == null && mCommitting != null) 
+            data = mCommitting.get(key);
+        return data;
+    }
+    
+    
+    private void recordAccess(String key) {
+        synchronized (mLock) {
+            long[] access = mPendingAccesses.get(key);
+            if (access == null) {
+                access = new long[2];
+                mPendingAccesses.put(key, access);
+            }
+            access[0] = System.currentTimeMillis();
+            access[1]++;
+            mLock.notifyAll();
+        }
+    }
+    
+    
+    private void commitLoop() {
+        while (true) {
+            Map<String, byte[]> writes;
+            Map<String, long[]> accesses;
+            
+            synchronized (mLock) {
+                while (mPendingWrites.isEmpty() && mPendingAccesses.isEmpty() && !mClosed) {
+                    waitLock(0);
+                }
+                if (mPendingWrites.isEmpty() && mPendingAccesses.isEmpty()) {
+                    break; // closed, and everything is committed
+                }
+                
+                // let the batch grow
+                long deadline = SystemClock.uptimeMillis() + COMMIT_WINDOW_MS;
+                long now;
+                while (!mCommitNow && !mClosed && mPendingWrites.size() < MAX_BATCH_SIZE 
+                        && (now = SystemClock.uptimeMillis()) < deadline) {
+                    waitLock(deadline - now);
+                }
+                mCommitNow = false;
+                
+                writes = mCommitting = mPendingWrites;
+                mPendingWrites = new LinkedHashMap<String, byte[]>();
+                accesses = mPendingAccesses;
+                mPendingAccesses = new HashMap<String, long[]>();
+            }
+            
+            long stored = 0;
+            try {
+                stored = commit(writes, accesses);
+            }
+            catch (Throwable e) {
+                Log.e(TAG, "error committing " + writes.size() + " rows", e);
+            }
+            finally {
+                synchronized (mLock) {
+                    mCommitting = null;
+                    mLock.notifyAll();
+                }
+            }
+            
+            if (mMaxSize != UNBOUNDED) {
+                mStoredSinceCheck += stored;
+                if (mStoredSinceCheck >= mMaxSize / PRUNE_CHECK_DIVISOR) {
+                    mStoredSinceCheck = 0;
+                    try {
+                        prune();
+                    }
+                    catch (Throwable e) {
+                        Log.e(TAG, "error pruning", e);
+                    }
+                }
+            }
+        }
+        
+        if (mInsert != null) {
+            mInsert.close();
+            mTouch.close();
+        }
+    }
+    
+    
+    /* One transaction. Runs on the committer thread, which owns the compiled statements. */
+    private long commit(Map<String, byte[]> writes, Map<String, long[]> accesses) {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        if (mInsert == null) {
+            mInsert = db.compileStatement(INSERT_SQL);
+            mTouch = db.compileStatement(TOUCH_SQL);
+        }
+        
+        // large images go to files first, outside of the transaction
+        Map<String, String> paths = new HashMap<String, String>();
+        for (Map.Entry<String, byte[]> e : writes.entrySet()) {
+            if (e.getValue().length > mExternalThreshold) {
+                try {
+                    paths.put(e.getKey(), mBlobs.write(e.getKey(), e.getValue()).getAbsolutePath());
+                } 
+                catch (IOException ex) {
+                    Log.e(TAG, "error storing " + e.getKey(), ex);
+                }
+            }
+            else {
+                mBlobs.delete(e.getKey()); // in case it was stored as a file before
+            }
+        }
+        
+        long stored = 0;
+        long now = System.currentTimeMillis();
+        db.beginTransaction();
+        try {
+            for (Map.Entry<String, byte[]> e : writes.entrySet()) {
+                byte[] data = e.getValue();
+                String path = paths.get(e.getKey());
+                if (path == null && data.length > mExternalThreshold) 
+                    continue; // the file couldn't be written
+                
+                mInsert.bindString(1, e.getKey());
+                if (path != null) {
+                    mInsert.bindNull(2);
+                    mInsert.bindString(3, path);
+                }
+                else {
+                    mInsert.bindBlob(2, EntryChecksum.wrap(data));
+                    mInsert.bindNull(3);
+                }
+                int size = EntryChecksum.HEADER_SIZE + data.length;
+                mInsert.bindLong(4, size);
+                mInsert.bindLong(5, now);
+                mInsert.executeInsert();
+                stored += size;
+            }
+            
+            for (Map.Entry<String, long[]> e : accesses.entrySet()) {
+                mTouch.bindLong(1, e.getValue()[0]);
+                mTouch.bindLong(2, e.getValue()[1]);
+                mTouch.bindString(3, e.getKey());
+                mTouch.execute();
+            }
+            db.setTransactionSuccessful();
+        }
+        finally {
+            db.endTransaction();
+        }
+        
+        if (DEBUG) Log.d(TAG, "committed " + writes.size() + " rows, " + accesses.size() + " accesses");
+        return stored;
+    }
+    
+    
+    /* Delete the least recently used rows in bulk, if over budget. */
+    private void prune() {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        long total = DatabaseUtils.longForQuery(db, 
+                "SELECT ifnull(sum(" + DBImageTable.SIZE + "),0) FROM " + DBImageTable.TABLE, null);
+        if (total <= mMaxSize) 
+            return;
+        
+        // find the access time up to which the rows free enough
+        long excess = total - (long)(mMaxSize * PRUNE_TARGET);
+        long freed = 0;
+        long cutoff = -1;
+        ArrayList<String> paths = new ArrayList<String>();
+        Cursor c = db.query(DBImageTable.TABLE, 
+                new String[] {DBImageTable.SIZE, DBImageTable.TIMESTAMP, DBImageTable.PATH}, 
+                null, null, null, null, DBImageTable.TIMESTAMP + " ASC");
+        try {
+            // all the rows up to the cutoff are deleted, so walk them all for their files
+            while (c.moveToNext()) {
+                long timestamp = c.getLong(1);
+                if (freed >= excess && timestamp != cutoff) 
+                    break;
+                freed += c.getLong(0);
+                cutoff = timestamp;
+                if (!c.isNull(2)) 
+                    paths.add(c.getString(2));
+            }
+        }
+        finally {
+            c.close();
+        }
+        
+        if (cutoff >= 0) {
+            int count = db.delete(DBImageTable.TABLE, DBImageTable.TIMESTAMP + "<=?", 
+                    new String[] {Long.toString(cutoff)});
+            for (String path : paths) {
+                new File(path).delete();
+            }
+            if (DEBUG) Log.d(TAG, "pruned " + count + " rows, " + total + " bytes stored");
+        }
+    }
+    
+    
+    private void waitLock(long millis) {
+        try {
+            mLock.wait(millis);
+        } catch (InterruptedException e) {}
+    }
+    
+    
+    private final DBImageOpenHelper mHelper;
+    private final long mMaxSize;
+    private final Thread mCommitter;
+    private final BlobFileStore mBlobs;
+    private int mExternalThreshold = BlobFileStore.DEFAULT_THRESHOLD;
+    private BitmapPool mBitmapPool;
+    
+    // committer thread only
+    private SQLiteStatement mInsert;
+    private SQLiteStatement mTouch;
+    private long mStoredSinceCheck;
+    
+    private final Object mLock = new Object();
+    private Map<String, byte[]> mPendingWrites = new LinkedHashMap<String, byte[]>();
+    private Map<String, long[]> mPendingAccesses = new HashMap<String, long[]>();
+    private Map<String, byte[]> mCommitting;
+    private boolean mCommitNow;
+    private boolean mClosed;
+    private int mCorruptionCount;
+}
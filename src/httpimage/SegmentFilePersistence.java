@@ -0,0 +1,509 @@
+//  Copyright 2012 Zonghai Li. All rights reserved.
+//
+//  Redistribution and use in binary and source forms, with or without modification,
+//  are permitted for any project, commercial or otherwise, provided that the
+//  following conditions are met:
+//  
+//  Redistributions in binary form must display the copyright notice in the About
+//  view, website, and/or documentation.
+//  
+//  Redistributions of source code must retain the copyright notice, this list of
+//  conditions, and the following disclaimer.
+//
+//  THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+//  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+//  PARTICULAR PURPOSE AND NONINFRINGEMENT OF THIRD PARTY RIGHTS. IN NO EVENT SHALL THE
+//  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+//  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+//  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THIS SOFTWARE.
+
+
+package httpimage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+
+/**
+ * Persistent storage packing the images into a few large segment files, instead of one 
+ * file per image. 
+ * 
+ * <p>
+ * Images are appended to the active segment as records: a header (magic, key length, data 
+ * length), the key and the data. Invalidating an image appends a tombstone record, a 
+ * header with a data length of -1. An in-memory index maps each key to the segment, offset 
+ * and length of its data; it is rebuilt at startup by walking the record headers, and a 
+ * record cut short by a crash is truncated away. Data is read back with positioned reads 
+ * on the segment's FileChannel.
+ * 
+ * <p>
+ * A segment whose live data falls under half of its size is compacted in the background:
+ * its live records are copied to the active segment and the file is deleted. clear() 
+ * only has to delete a handful of files.
+ * 
+ * @author zonghai@gmail.com
+ */
+public class SegmentFilePersistence implements DecodingBitmapCache {
+    
+    private static final String TAG = "SegmentFilePersistence";
+    private static final boolean DEBUG = false;
+    
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    
+    private static final String SEGMENT_PREFIX = "segment.";
+    private static final int RECORD_MAGIC = 0x48494d47; // "HIMG"
+    private static final int HEADER_SIZE = 12;
+    private static final int TOMBSTONE = -1;
+    
+    
+    private static class Location {
+        final int segment;
+        final long offset; // of the data
+        final int length;
+        final int recordSize;
+        
+        Location(int segment, long offset, int length, int recordSize) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.recordSize = recordSize;
+        }
+    }
+    
+    
+    private static class Segment {
+        final int id;
+        final File file;
+        final RandomAccessFile raf;
+        long size;     // bytes of records
+        long liveSize; // bytes of records still indexed
+        
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+        }
+        
+        void close() {
+            try { raf.close(); } catch (IOException e) {}
+        }
+    }
+    
+    
+    public SegmentFilePersistence(String baseDir) {
+        this(baseDir, DEFAULT_SEGMENT_SIZE);
+    }
+    
+    
+    /**
+     * @param baseDir
+     * @param segmentSize size at which the active segment is closed and a new one started
+     */
+    public SegmentFilePersistence(String baseDir, int segmentSize) {
+        mBaseDir = new File(baseDir);
+        mSegmentSize = segmentSize;
+    }
+    
+    
+    /**
+     * Decode into bitmaps taken from the pool when possible.
+     * @param pool null to disable
+     */
+    public void setBitmapPool (BitmapPool pool) {
+        mBitmapPool = pool;
+    }
+    
+    
+    @Override
+    public synchronized boolean exists(String key) {
+        return index().containsKey(key);
+    }
+
+    
+    @Override
+    public Bitmap loadData(String key) {
+        return loadData(key, DecodeOptions.DEFAULT);
+    }
+
+    
+    @Override
+    public Bitmap loadData(String key, DecodeOptions options) {
+        byte[] binary = loadBinary(key);
+        if (binary == null) {
+            return null;
+        }
+        return BitmapUtil.decodeByteArray(binary, options, mBitmapPool);
+    }
+
+    
+    @Override
+    public Bitmap peekData(String key) {
+        return null; // only available through disk I/O
+    }
+
+    
+    @Override
+    public void storeData(String key, Object data) {
+        byte[] binary = (byte[]) data;
+        if (binary == null) {
+            return;
+        }
+        
+        synchronized (this) {
+            try {
+                Location l = append(key, binary);
+                Location old = index().put(key, l);
+                if (old != null) {
+                    release(old);
+                }
+            }
+            catch (IOException e) {
+                if(DEBUG) Log.e(TAG, "error storing bitmap", e);
+            }
+        }
+    }
+
+    
+    @Override
+    public void invalidate(String key) {
+        synchronized (this) {
+            Location old = index().remove(key);
+            if (old == null) {
+                return;
+            }
+            
+            try {
+                append(key, null);
+            }
+            catch (IOException e) {
+                if(DEBUG) Log.e(TAG, "error invalidating " + key, e);
+            }
+            release(old);
+        }
+    }
+
+    
+    @Override
+    public synchronized void clear() {
+        for (Segment s : mSegments.values()) {
+            s.close();
+            s.file.delete();
+        }
+        mSegments.clear();
+        mIndex = new HashMap<String, Location>();
+        mActive = null;
+        mNextSegmentId = 0;
+        mLoaded = true;
+    }
+    
+    
+    @Override
+    public void trimMemory(int level) {
+        // nothing held in memory but the index
+    }
+    
+    
+    /**
+     * Number of live bytes stored, not counting headers and dead records
+     */
+    public synchronized long getSize() {
+        index();
+        long size = 0;
+        for (Segment s : mSegments.values()) {
+            size += s.liveSize;
+        }
+        return size;
+    }
+    
+    
+    /**
+     * Number of segment files
+     */
+    public synchronized int getSegmentCount() {
+        index();
+        return mSegments.size();
+    }
+    
+    
+    ////////PRIVATE
+    private byte[] loadBinary(String key) {
+        // a compaction may move the data between the lookup and the read, try again then
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Location l;
+            FileChannel channel;
+            synchronized (this) {
+                l = index().get(key);
+                if (l == null) {
+                    return null;
+                }
+                channel = mSegments.get(l.segment).raf.getChannel();
+            }
+            
+            try {
+                ByteBuffer buf = ByteBuffer.allocate(l.length);
+                long pos = l.offset;
+                while (buf.hasRemaining()) {
+                    int n = channel.read(buf, pos);
+                    if (n < 0) 
+                        throw new IOException("unexpected end of segment " + l.segment);
+                    pos += n;
+                }
+                return buf.array();
+            }
+            catch (IOException e) {
+                if(DEBUG) Log.w(TAG, "error reading " + key + ", attempt " + attempt, e);
+            }
+        }
+        return null;
+    }
+    
+    
+    /* Load the index on first use. Call with the lock held. */
+    private Map<String, Location> index() {
+        if (!mLoaded) {
+            mLoaded = true;
+            load();
+        }
+        return mIndex;
+    }
+    
+    
+    /* Rebuild the index by walking the record headers of every segment, oldest first. */
+    private void load() {
+        File[] files = mBaseDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        
+        TreeMap<Integer, File> ordered = new TreeMap<Integer, File>();
+        for (File f : files) {
+            String name = f.getName();
+            if (name.startsWith(SEGMENT_PREFIX)) {
+                try {
+                    ordered.put(Integer.parseInt(name.substring(SEGMENT_PREFIX.length())), f);
+                } catch (NumberFormatException e) {}
+            }
+        }
+        
+        for (Map.Entry<Integer, File> e : ordered.entrySet()) {
+            try {
+                Segment s = new Segment(e.getKey(), e.getValue());
+                mSegments.put(s.id, s);
+                scanSegment(s);
+                mActive = s;
+                mNextSegmentId = s.id + 1;
+            }
+            catch (IOException ex) {
+                if(DEBUG) Log.e(TAG, "error loading segment " + e.getValue(), ex);
+            }
+        }
+        if(DEBUG) Log.d(TAG, "loaded " + mIndex.size() + " entries from " + mSegments.size() + " segments");
+        
+        // segments left sparse by the previous run, or by a crash before their compaction
+        for (Segment s : mSegments.values()) {
+            checkCompaction(s);
+        }
+    }
+    
+    
+    private void scanSegment(Segment s) throws IOException {
+        RandomAccessFile raf = s.raf;
+        long length = raf.length();
+        long pos = 0;
+        
+        while (pos + HEADER_SIZE <= length) {
+            raf.seek(pos);
+            int magic = raf.readInt();
+            int keyLength = raf.readInt();
+            int dataLength = raf.readInt();
+            long end = pos + HEADER_SIZE + keyLength + Math.max(dataLength, 0);
+            if (magic != RECORD_MAGIC || keyLength <= 0 || dataLength < TOMBSTONE || end > length) {
+                break; // record cut short, or garbage
+            }
+            
+            byte[] k = new byte[keyLength];
+            raf.readFully(k);
+            String key = new String(k, "UTF-8");
+            
+            Location old;
+            if (dataLength == TOMBSTONE) {
+                old = mIndex.remove(key);
+            }
+            else {
+                old = mIndex.put(key, new Location(s.id, pos + HEADER_SIZE + keyLength, dataLength, (int) (end - pos)));
+                s.liveSize += end - pos;
+            }
+            if (old != null) {
+                mSegments.get(old.segment).liveSize -= old.recordSize;
+            }
+            pos = end;
+        }
+        
+        if (pos != length) {
+            if(DEBUG) Log.w(TAG, "truncating segment " + s.id + " from " + length + " to " + pos);
+            raf.setLength(pos);
+        }
+        s.size = pos;
+    }
+    
+    
+    /* Append a record to the active segment; a tombstone if data is null. Call with the lock held. */
+    private Location append(String key, byte[] data) throws IOException {
+        if (mActive == null || mActive.size >= mSegmentSize) {
+            mBaseDir.mkdirs();
+            Segment previous = mActive;
+            mActive = new Segment(mNextSegmentId, new File(mBaseDir, SEGMENT_PREFIX + mNextSegmentId));
+            mSegments.put(mActive.id, mActive);
+            mNextSegmentId++;
+            if (previous != null) {
+                // releases skipped it while it was active
+                checkCompaction(previous);
+            }
+        }
+        
+        byte[] k = key.getBytes("UTF-8");
+        int dataLength = data == null ? TOMBSTONE : data.length;
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + k.length + Math.max(dataLength, 0));
+        buf.putInt(RECORD_MAGIC).putInt(k.length).putInt(dataLength).put(k);
+        if (data != null) {
+            buf.put(data);
+        }
+        buf.flip();
+        
+        FileChannel channel = mActive.raf.getChannel();
+        long pos = mActive.size;
+        while (buf.hasRemaining()) {
+            pos += channel.write(buf, pos);
+        }
+        
+        Location l = new Location(mActive.id, mActive.size + HEADER_SIZE + k.length, dataLength, (int) (pos - mActive.size));
+        if (data != null) {
+            mActive.liveSize += pos - mActive.size;
+        }
+        mActive.size = pos;
+        return l;
+    }
+    
+    
+    /* The record at the location is dead now. Call with the lock held. */
+    private void release(Location l) {
+        Segment s = mSegments.get(l.segment);
+        s.liveSize -= l.recordSize;
+        checkCompaction(s);
+    }
+    
+    
+    /* Schedule a compaction if the segment is closed and mostly dead. Call with the lock held. */
+    private void checkCompaction(Segment s) {
+        if (s != mActive && s.liveSize * 2 < s.size) {
+            scheduleCompaction();
+        }
+    }
+    
+    
+    private void scheduleCompaction() {
+        if (mCompactionScheduled) {
+            return;
+        }
+        mCompactionScheduled = true;
+        
+        mCompactionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                compact();
+            }
+        });
+    }
+    
+    
+    /*
+     * Copy the live records of sparse segments, oldest first, to the active segment and 
+     * delete them. Tombstones are kept as long as an older segment may hold the record 
+     * they cancel.
+     */
+    private synchronized void compact() {
+        mCompactionScheduled = false;
+        
+        List<Integer> ids = new ArrayList<Integer>(mSegments.keySet());
+        Collections.sort(ids);
+        for (Integer id : ids) {
+            Segment s = mSegments.get(id);
+            if (s == null || s == mActive || s.liveSize * 2 >= s.size) {
+                continue;
+            }
+            
+            try {
+                boolean olderExists = mSegments.firstKey() < s.id;
+                copyLiveRecords(s, olderExists);
+                mSegments.remove(s.id);
+                s.close();
+                s.file.delete();
+                if(DEBUG) Log.d(TAG, "compacted segment " + s.id);
+            }
+            catch (IOException e) {
+                if(DEBUG) Log.e(TAG, "error compacting segment " + s.id, e);
+                return;
+            }
+        }
+    }
+    
+    
+    private void copyLiveRecords(Segment s, boolean keepTombstones) throws IOException {
+        RandomAccessFile raf = s.raf;
+        long pos = 0;
+        while (pos + HEADER_SIZE <= s.size) {
+            raf.seek(pos);
+            raf.readInt(); // magic, checked when loading
+            int keyLength = raf.readInt();
+            int dataLength = raf.readInt();
+            byte[] k = new byte[keyLength];
+            raf.readFully(k);
+            String key = new String(k, "UTF-8");
+            long dataOffset = pos + HEADER_SIZE + keyLength;
+            
+            if (dataLength == TOMBSTONE) {
+                if (keepTombstones && !mIndex.containsKey(key)) {
+                    append(key, null);
+                }
+            }
+            else {
+                Location l = mIndex.get(key);
+                if (l != null && l.segment == s.id && l.offset == dataOffset) {
+                    byte[] data = new byte[dataLength];
+                    raf.readFully(data);
+                    mIndex.put(key, append(key, data));
+                }
+            }
+            pos = dataOffset + Math.max(dataLength, 0);
+        }
+    }
+    
+    
+    private final File mBaseDir;
+    private final int mSegmentSize;
+    private BitmapPool mBitmapPool;
+    
+    private boolean mLoaded;
+    private Map<String, Location> mIndex = new HashMap<String, Location>();
+    private TreeMap<Integer, Segment> mSegments = new TreeMap<Integer, Segment>();
+    private Segment mActive;
+    private int mNextSegmentId;
+    
+    private boolean mCompactionScheduled;
+    private ThreadPoolExecutor mCompactionExecutor = new ThreadPoolExecutor(0, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+}
@@ -0,0 +1,344 @@
+//  Copyright 2012 Zonghai Li. All rights reserved.
+//
+//  Redistribution and use in binary and source forms, with or without modification,
+//  are permitted for any project, commercial or otherwise, provided that the
+//  following conditions are met:
+//  
+//  Redistributions in binary form must display the copyright notice in the About
+//  view, website, and/or documentation.
+//  
+//  Redistributions of source code must retain the copyright notice, this list of
+//  conditions, and the following disclaimer.
+//
+//  THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+//  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+//  PARTICULAR PURPOSE AND NONINFRINGEMENT OF THIRD PARTY RIGHTS. IN NO EVENT SHALL THE
+//  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+//  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+//  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THIS SOFTWARE.
+
+
+package httpimage;
+
+import java.util.HashMap;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+
+/**
+ * Memory cache implementation of BitmapCache which takes into account how often, and not 
+ * only how recently, a bitmap is used (W-TinyLFU). 
+ * 
+ * <p>
+ * New bitmaps enter a small LRU window. When the window overflows, its least recently 
+ * used bitmap competes with the eviction victim of the main area, and whichever has been 
+ * used more often, as estimated by a FrequencySketch, stays. The main area is a segmented 
+ * LRU: bitmaps used again while on probation get promoted to the protected segment.
+ * 
+ * <p>
+ * A long scroll through one-shot images churns through the window only, and popular 
+ * bitmaps such as avatars survive it.
+ * 
+ * @author zonghai@gmail.com
+ */
+public class TinyLfuBitmapCache implements BitmapCache {
+    
+    private static final String TAG = "TinyLfuBitmapCache";
+    private static final boolean DEBUG = false;
+    
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+    
+    
+    private static class CacheEntry {
+        public String key;
+        public Bitmap data;
+        public int queue;
+        public int nUsed;
+        public long timestamp;
+        
+        public CacheEntry prev;
+        public CacheEntry next;
+    }
+    
+    
+    /* LRU list, head is the least recently used. */
+    private static class Queue {
+        CacheEntry head;
+        CacheEntry tail;
+        int count;
+        
+        void linkLast(CacheEntry e) {
+            e.prev = tail;
+            e.next = null;
+            if (tail != null) 
+                tail.next = e;
+            else 
+                head = e;
+            tail = e;
+            count++;
+        }
+        
+        void unlink(CacheEntry e) {
+            if (e.prev != null) 
+                e.prev.next = e.next;
+            else
+                head = e.next;
+            
+            if (e.next != null)
+                e.next.prev = e.prev;
+            else 
+                tail = e.prev;
+            
+            e.prev = e.next = null;
+            count--;
+        }
+        
+        void clear() {
+            head = tail = null;
+            count = 0;
+        }
+    }
+    
+    
+    /**
+     * max number of resource this cache contains
+     * @param size
+     */
+    public TinyLfuBitmapCache(int size) {
+        if (size <= 0) 
+            throw new IllegalArgumentException("size must be positive");
+        
+        mMaxWindow = Math.max(1, size / 100);
+        mMaxMain = size - mMaxWindow;
+        mMaxProtected = mMaxMain * 4 / 5;
+        mSketch = new FrequencySketch(size);
+    }
+    
+    
+    @Override
+    public synchronized boolean exists(String key) {
+        return mMap.containsKey(key);
+    }
+
+    
+    @Override
+    public synchronized Bitmap loadData(String key) {
+        mSketch.increment(key);
+        
+        CacheEntry e = mMap.get(key);
+        if (e == null) {
+            mMissCount++;
+            return null;
+        }
+        return hit(e);
+    }
+    
+    
+    /**
+     * A hit counts as a use, as with loadData(). A miss doesn't: it is followed by 
+     * loadData() on the loading thread, which counts it, so that each request is 
+     * counted once in the frequency sketch.
+     */
+    @Override
+    public synchronized Bitmap peekData(String key) {
+        CacheEntry e = mMap.get(key);
+        if (e == null) {
+            return null;
+        }
+        mSketch.increment(key);
+        return hit(e);
+    }
+    
+    
+    @Override
+    public synchronized void storeData(String key, Object data) {
+        if (mMap.containsKey(key)) {
+            return;
+        }
+        
+        CacheEntry e = new CacheEntry();
+        e.key = key;
+        e.data = (Bitmap) data;
+        e.nUsed = 1;
+        e.timestamp = System.currentTimeMillis();
+        e.queue = WINDOW;
+        mMap.put(key, e);
+        mWindow.linkLast(e);
+        
+        if (mWindow.count > mMaxWindow) {
+            CacheEntry candidate = mWindow.head;
+            mWindow.unlink(candidate);
+            admit(candidate);
+        }
+    }
+
+    
+    @Override
+    public synchronized void invalidate(String key) {
+        CacheEntry e = mMap.remove(key);
+        if (e == null) {
+            return;
+        }
+        queueOf(e).unlink(e);
+        if(DEBUG) Log.d(TAG, key + " is invalidated from the cache");
+    }
+
+    
+    @Override
+    public synchronized void clear() {
+        mMap.clear();
+        mWindow.clear();
+        mProbation.clear();
+        mProtected.clear();
+        mSketch.clear();
+    }
+    
+    
+    @Override
+    public synchronized void trimMemory(int level) {
+        if (level >= TRIM_MEMORY_COMPLETE) {
+            clear();
+            return;
+        }
+        
+        // least valuable first: probation, then the window, then protected
+        int target = TrimPolicy.trimmedSize(mMap.size(), level);
+        Queue[] order = { mProbation, mWindow, mProtected };
+        for (Queue q : order) {
+            while (mMap.size() > target && q.head != null) {
+                CacheEntry out = q.head;
+                q.unlink(out);
+                mMap.remove(out.key);
+            }
+        }
+    }
+    
+    
+    /**
+     * Let bitmaps evicted for lack of room go to the pool for reuse by the decoder. 
+     * Only do this when the cache holds more bitmaps than can be on screen at a time, 
+     * since a pooled bitmap gets overwritten. 
+     * @param pool null to disable
+     */
+    public synchronized void setBitmapPool(BitmapPool pool) {
+        mPool = pool;
+    }
+    
+    
+    /**
+     * Number of bitmaps currently cached
+     */
+    public synchronized int size() {
+        return mMap.size();
+    }
+    
+    
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+    
+    
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+    
+    
+    ////////PRIVATE
+    /* Count the use of a cached entry and move it up. Call with the lock held. */
+    private Bitmap hit(CacheEntry e) {
+        mHitCount++;
+        e.nUsed++;
+        e.timestamp = System.currentTimeMillis();
+        
+        switch (e.queue) {
+        case WINDOW:
+            mWindow.unlink(e);
+            mWindow.linkLast(e);
+            break;
+            
+        case PROBATION:
+            // used again, it deserves protection
+            mProbation.unlink(e);
+            e.queue = PROTECTED;
+            mProtected.linkLast(e);
+            if (mProtected.count > mMaxProtected) {
+                CacheEntry demoted = mProtected.head;
+                mProtected.unlink(demoted);
+                demoted.queue = PROBATION;
+                mProbation.linkLast(demoted);
+            }
+            break;
+            
+        case PROTECTED:
+            mProtected.unlink(e);
+            mProtected.linkLast(e);
+            break;
+        }
+        return e.data;
+    }
+    
+    
+    /*
+     * A bitmap leaving the window either gets into the main area or is evicted, 
+     * depending on its frequency compared to the main area's victim.
+     */
+    private void admit(CacheEntry candidate) {
+        candidate.queue = PROBATION;
+        if (mProbation.count + mProtected.count < mMaxMain) {
+            mProbation.linkLast(candidate);
+            return;
+        }
+        
+        CacheEntry victim = mProbation.head != null ? mProbation.head : mProtected.head;
+        if (victim != null && mSketch.frequency(candidate.key) > mSketch.frequency(victim.key)) {
+            evict(victim);
+            mProbation.linkLast(candidate);
+        }
+        else {
+            mMap.remove(candidate.key);
+            entryEvicted(candidate);
+        }
+    }
+    
+    
+    private void evict(CacheEntry e) {
+        queueOf(e).unlink(e);
+        mMap.remove(e.key);
+        entryEvicted(e);
+    }
+    
+    
+    private void entryEvicted(CacheEntry e) {
+        if(DEBUG) Log.d(TAG, e.key + " is evicted from the cache");
+        if (mPool != null) {
+            mPool.put(e.data);
+        }
+    }
+    
+    
+    private Queue queueOf(CacheEntry e) {
+        switch (e.queue) {
+        case WINDOW:    return mWindow;
+        case PROBATION: return mProbation;
+        default:        return mProtected;
+        }
+    }
+    
+    
+    private final int mMaxWindow;
+    private final int mMaxMain;
+    private final int mMaxProtected;
+    private final FrequencySketch mSketch;
+    
+    private HashMap<String, CacheEntry> mMap = new HashMap<String, CacheEntry>();
+    private Queue mWindow = new Queue();
+    private Queue mProbation = new Queue();
+    private Queue mProtected = new Queue();
+    private BitmapPool mPool;
+    
+    private int mHitCount;
+    private int mMissCount;
+}
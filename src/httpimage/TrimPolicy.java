@@ -0,0 +1,47 @@
+//  Copyright 2012 Zonghai Li. All rights reserved.
+//
+//  Redistribution and use in binary and source forms, with or without modification,
+//  are permitted for any project, commercial or otherwise, provided that the
+//  following conditions are met:
+//  
+//  Redistributions in binary form must display the copyright notice in the About
+//  view, website, and/or documentation.
+//  
+//  Redistributions of source code must retain the copyright notice, this list of
+//  conditions, and the following disclaimer.
+//
+//  THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+//  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+//  PARTICULAR PURPOSE AND NONINFRINGEMENT OF THIRD PARTY RIGHTS. IN NO EVENT SHALL THE
+//  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+//  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+//  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THIS SOFTWARE.
+
+
+package httpimage;
+
+
+/**
+ * Trimming policy shared by the memory caches, see BitmapCache.trimMemory().
+ * 
+ * @author zonghai@gmail.com
+ */
+final class TrimPolicy {
+
+    private TrimPolicy() {
+    }
+    
+    
+    /**
+     * What's left of a size after trimming at the given level.
+     * @param level one of BitmapCache.TRIM_MEMORY_XXX
+     */
+    static int trimmedSize (int size, int level) {
+        if (level >= BitmapCache.TRIM_MEMORY_COMPLETE) 
+            return 0;
+        else if (level >= BitmapCache.TRIM_MEMORY_BACKGROUND) 
+            return size / 4;
+        else 
+            return size / 2;
+    }
+}
@@ -0,0 +1,325 @@
+//  Copyright 2012 Zonghai Li. All rights reserved.
+//
+//  Redistribution and use in binary and source forms, with or without modification,
+//  are permitted for any project, commercial or otherwise, provided that the
+//  following conditions are met:
+//  
+//  Redistributions in binary form must display the copyright notice in the About
+//  view, website, and/or documentation.
+//  
+//  Redistributions of source code must retain the copyright notice, this list of
+//  conditions, and the following disclaimer.
+//
+//  THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+//  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+//  PARTICULAR PURPOSE AND NONINFRINGEMENT OF THIRD PARTY RIGHTS. IN NO EVENT SHALL THE
+//  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+//  WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+//  CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THIS SOFTWARE.
+
+
+package httpimage;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+
+/**
+ * Write-behind stage in front of a persistent storage. 
+ * 
+ * <p>
+ * storeData() only queues the data and returns, and a dedicated writer thread hands it 
+ * to the storage in the background, so loader threads go back to the network without 
+ * waiting on disk I/O. Storing a key already queued replaces the queued data. Data still
+ * queued is served from the queue. The queue is bounded by bytes: when full, storeData() 
+ * waits for the writer to catch up.
+ * 
+ * <pre>
+ *     new HttpImageManager(memoryCache, 
+ *             new WriteBehindPersistence(new FileSystemPersistence(dir)));
+ * </pre>
+ * 
+ * Call shutdown() before the process goes away, so that queued data reaches the storage.
+ * 
+ * @author zonghai@gmail.com
+ */
+public class WriteBehindPersistence implements DecodingBitmapCache, EncodedBitmapCache {
+    
+    private static final String TAG = "WriteBehindPersistence";
+    private static final boolean DEBUG = false;
+    
+    public static final int DEFAULT_MAX_PENDING_BYTES = 2 * 1024 * 1024;
+    
+    
+    public WriteBehindPersistence(BitmapCache persistence) {
+        this(persistence, DEFAULT_MAX_PENDING_BYTES);
+    }
+    
+    
+    /**
+     * @param persistence the storage written to
+     * @param maxPendingBytes max number of bytes queued for writing
+     */
+    public WriteBehindPersistence(BitmapCache persistence, int maxPendingBytes) {
+        if (persistence == null) 
+            throw new NullPointerException("persistence must not be null");
+        mPersistence = persistence;
+        mMaxPendingSize = maxPendingBytes;
+        
+        mWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, TAG);
+        mWriter.setDaemon(true);
+        mWriter.start();
+    }
+    
+    
+    @Override
+    public boolean exists(String key) {
+        synchronized (mLock) {
+            if (mPending.containsKey(key) || key.equals(mWritingKey)) 
+                return true;
+        }
+        return mPersistence.exists(key);
+    }
+
+    
+    @Override
+    public Bitmap loadData(String key) {
+        return loadData(key, DecodeOptions.DEFAULT);
+    }
+
+    
+    @Override
+    public Bitmap loadData(String key, DecodeOptions options) {
+        byte[] binary;
+        synchronized (mLock) {
+            binary = mPending.get(key);
+            if (binary == null && key.equals(mWritingKey)) 
+                binary = mWritingData;
+        }
+        
+        if (binary != null) {
+            return BitmapUtil.decodeByteArray(binary, options, null);
+        }
+        return DecodeOptions.load(mPersistence, key, options);
+    }
+
+    
+    @Override
+    public byte[] loadBinary(String key) {
+        synchronized (mLock) {
+            byte[] binary = mPending.get(key);
+            if (binary == null && key.equals(mWritingKey)) 
+                binary = mWritingData;
+            if (binary != null) 
+                return binary;
+        }
+        
+        if (mPersistence instanceof EncodedBitmapCache) 
+            return ((EncodedBitmapCache) mPersistence).loadBinary(key);
+        return null;
+    }
+
+    
+    @Override
+    public InputStream openBinary(String key) {
+        synchronized (mLock) {
+            byte[] binary = mPending.get(key);
+            if (binary == null && key.equals(mWritingKey)) 
+                binary = mWritingData;
+            if (binary != null) 
+                return new ByteArrayInputStream(binary);
+        }
+        
+        if (mPersistence instanceof EncodedBitmapCache) 
+            return ((EncodedBitmapCache) mPersistence).openBinary(key);
+        return null;
+    }
+
+    
+    @Override
+    public Bitmap peekData(String key) {
+        return mPersistence.peekData(key);
+    }
+
+    
+    @Override
+    public void storeData(String key, Object data) {
+        byte[] binary = (byte[]) data;
+        if (binary == null) {
+            return;
+        }
+        
+        synchronized (mLock) {
+            if (!mShutdown) {
+                // make room, unless the queue is empty: an oversized entry still goes through.
+                // Data replacing a queued entry only needs the difference.
+                while (!mPending.isEmpty() && !mShutdown 
+                        && mPendingSize - pendingSizeOf(key) + binary.length > mMaxPendingSize) {
+                    waitLock();
+                }
+            }
+            
+            if (!mShutdown) {
+                byte[] old = mPending.remove(key); // coalesce, and move to the end of the queue
+                if (old != null) 
+                    mPendingSize -= old.length;
+                mPending.put(key, binary);
+                mPendingSize += binary.length;
+                mLock.notifyAll();
+                return;
+            }
+        }
+        
+        // shut down: write through
+        mPersistence.storeData(key, data);
+    }
+
+    
+    @Override
+    public void invalidate(String key) {
+        synchronized (mLock) {
+            byte[] old = mPending.remove(key);
+            if (old != null) {
+                mPendingSize -= old.length;
+                mLock.notifyAll();
+            }
+            // let a write in progress complete, so it is invalidated too
+            while (key.equals(mWritingKey)) {
+                waitLock();
+            }
+        }
+        mPersistence.invalidate(key);
+    }
+
+    
+    @Override
+    public void clear() {
+        synchronized (mLock) {
+            mPending.clear();
+            mPendingSize = 0;
+            mLock.notifyAll();
+            while (mWritingKey != null) {
+                waitLock();
+            }
+        }
+        mPersistence.clear();
+    }
+    
+    
+    @Override
+    public void trimMemory(int level) {
+        // queued data is not written yet, it can't be dropped
+        mPersistence.trimMemory(level);
+    }
+    
+    
+    /**
+     * Block until everything queued so far has been handed to the storage.
+     */
+    public void flush() {
+        synchronized (mLock) {
+            while (!mPending.isEmpty() || mWritingKey != null) {
+                waitLock();
+            }
+        }
+    }
+    
+    
+    /**
+     * Flush the queue and stop the writer thread. Later stores are written through.
+     */
+    public void shutdown() {
+        flush();
+        synchronized (mLock) {
+            mShutdown = true;
+            mLock.notifyAll();
+        }
+        if(DEBUG) Log.d(TAG, "shut down");
+    }
+    
+    
+    /**
+     * Number of bytes queued for writing
+     */
+    public int getPendingSize() {
+        synchronized (mLock) {
+            return mPendingSize;
+        }
+    }
+    
+    
+    ////////PRIVATE
+    private void writeLoop() {
+        while (true) {
+            String key;
+            byte[] data;
+            
+            synchronized (mLock) {
+                while (mPending.isEmpty() && !mShutdown) {
+                    waitLock();
+                }
+                if (mPending.isEmpty()) {
+                    return; // shut down
+                }
+                
+                Iterator<Map.Entry<String, byte[]>> it = mPending.entrySet().iterator();
+                Map.Entry<String, byte[]> first = it.next();
+                it.remove();
+                
+                key = mWritingKey = first.getKey();
+                data = mWritingData = first.getValue();
+                mPendingSize -= data.length;
+            }
+            
+            try {
+                mPersistence.storeData(key, data);
+            }
+            catch (Throwable e) {
+                if(DEBUG) Log.e(TAG, "error writing " + key, e);
+            }
+            finally {
+                synchronized (mLock) {
+                    mWritingKey = null;
+                    mWritingData = null;
+                    mLock.notifyAll();
+                }
+            }
+        }
+    }
+    
+    
+    private int pendingSizeOf(String key) {
+        byte[] queued = mPending.get(key);
+        return queued == null ? 0 : queued.length;
+    }
+    
+    
+    private void waitLock() {
+        try {
+            mLock.wait();
+        } catch (InterruptedException e) {}
+    }
+    
+    
+    private final BitmapCache mPersistence;
+    private final int mMaxPendingSize;
+    private final Thread mWriter;
+    
+    private final Object mLock = new Object();
+    private LinkedHashMap<String, byte[]> mPending = new LinkedHashMap<String, byte[]>();
+    private int mPendingSize;
+    private String mWritingKey;
+    private byte[] mWritingData;
+    private boolean mShutdown;
+}
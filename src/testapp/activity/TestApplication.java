@@ -5,6 +5,7 @@ import httpimage.*;
 public class TestApplication extends android.app.Application {
 
 	public static final String BASEDIR = "/sdcard/httpimage";
+	public static final int ENCODED_CACHE_BYTES = 4 * 1024 * 1024;
 	
 	
 	@Override
@@ -13,7 +14,31 @@ public class TestApplication extends android.app.Application {
 
 		// init HttpImageManager manager.
 		mHttpImageManager = new HttpImageManager(HttpImageManager.createDefaultMemoryCache(), 
-				new FileSystemPersistence(BASEDIR));
+				new EncodedMemoryCache(new FileSystemPersistence(BASEDIR), ENCODED_CACHE_BYTES));
+	}
+
+	
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		mHttpImageManager.trimMemory(BitmapCache.TRIM_MEMORY_COMPLETE);
+	}
+
+
+	/**
+	 * ComponentCallbacks2.onTrimMemory(), called since API 14. Not annotated with @Override
+	 * because the project is built against API 8, so the platform constants are inlined.
+	 */
+	public void onTrimMemory(int level) {
+		if (level >= 60) { // TRIM_MEMORY_MODERATE and above: we are a candidate to be killed
+			mHttpImageManager.trimMemory(BitmapCache.TRIM_MEMORY_COMPLETE);
+		}
+		else if (level >= 20) { // TRIM_MEMORY_UI_HIDDEN, TRIM_MEMORY_BACKGROUND
+			mHttpImageManager.trimMemory(BitmapCache.TRIM_MEMORY_BACKGROUND);
+		}
+		else if (level >= 10) { // TRIM_MEMORY_RUNNING_LOW, TRIM_MEMORY_RUNNING_CRITICAL
+			mHttpImageManager.trimMemory(BitmapCache.TRIM_MEMORY_MODERATE);
+		}
 	}
 
 	
@@ -0,0 +1,31 @@
+#!/bin/sh
+#
+# Run the JVM unit tests of the library. The platform classes the tests touch are 
+# stood in by test/stubs, so no device or emulator is needed.
+#
+#   test/run-tests.sh path/to/junit-4.x.jar:path/to/hamcrest-core.jar [TestClass...]
+#
+# Without test classes, every *Test in test/src is run.
+
+if [ -z "$1" ]; then
+    echo "usage: $0 junit-classpath [TestClass...]" >&2
+    exit 2
+fi
+
+JUNIT=$1
+shift
+
+ROOT=$(cd "$(dirname "$0")/.." && pwd)
+OUT=$(mktemp -d)
+trap 'rm -rf "$OUT"' EXIT
+
+javac -nowarn -encoding UTF-8 -d "$OUT" -cp "$JUNIT" \
+    -sourcepath "$ROOT/src:$ROOT/test/stubs:$ROOT/test/src" \
+    $(find "$ROOT/test/src" -name '*.java') || exit 1
+
+if [ $# -eq 0 ]; then
+    set -- $(cd "$ROOT/test/src" && find . -name '*Test.java' | sed -e 's|^\./||' -e 's|\.java$||' -e 's|/|.|g')
+fi
+
+# resources of the tests are looked up relative to test/
+cd "$ROOT/test" && java -cp "$OUT:$JUNIT" org.junit.runner.JUnitCore "$@"
@@ -0,0 +1,82 @@
+#!/usr/bin/env python3
+#
+# Effect of transaction batching on the image table, for when no device is at hand:
+# stores and access updates one transaction each, as DBPersistence does through the
+# ContentResolver, against batches of up to 64 per transaction, as the committer of
+# SQLitePersistence does. Same schema and statements as DBImageOpenHelper and
+# SQLitePersistence, with the desktop SQLite of Python.
+#
+#   test/sqlite-batching-benchmark.py [rows] [blob bytes]
+
+import os
+import random
+import sqlite3
+import sys
+import tempfile
+import time
+
+ROWS = int(sys.argv[1]) if len(sys.argv) > 1 else 2000
+BLOB = int(sys.argv[2]) if len(sys.argv) > 2 else 8 * 1024
+BATCH = 64  # SQLitePersistence.MAX_BATCH_SIZE
+
+SCHEMA = [
+    "CREATE TABLE thumbnail (_id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL, "
+    "data BLOB, path TEXT, size INTEGER, timestamp INTEGER, nuse INTEGER)",
+    "CREATE UNIQUE INDEX thumbnail_name ON thumbnail (name)",
+    "CREATE INDEX thumbnail_timestamp ON thumbnail (timestamp)",
+]
+INSERT_SQL = ("INSERT OR REPLACE INTO thumbnail (name,data,path,size,timestamp,nuse) "
+              "VALUES (?,?,?,?,?,1)")
+TOUCH_SQL = "UPDATE thumbnail SET timestamp=?,nuse=nuse+? WHERE name=?"
+
+
+def run(journal, synchronous, batch):
+    fd, path = tempfile.mkstemp(suffix=".db")
+    os.close(fd)
+    os.remove(path)
+    try:
+        db = sqlite3.connect(path, isolation_level=None)  # autocommit unless BEGIN
+        db.execute("PRAGMA journal_mode=" + journal)
+        db.execute("PRAGMA synchronous=" + synchronous)
+        for sql in SCHEMA:
+            db.execute(sql)
+
+        data = os.urandom(BLOB)
+        keys = ["%032x" % (i * 0x9E3779B97F4A7C15 & (2**63 - 1)) for i in range(ROWS)]
+        rows = [(k, data, None, len(data) + 12, i) for i, k in enumerate(keys)]
+        start = time.perf_counter()
+        execute(db, INSERT_SQL, rows, batch)
+        insert = (time.perf_counter() - start) / ROWS
+
+        rnd = random.Random(1)
+        touches = [(ROWS + i, 1, keys[rnd.randrange(ROWS)]) for i in range(ROWS)]
+        start = time.perf_counter()
+        execute(db, TOUCH_SQL, touches, batch)
+        touch = (time.perf_counter() - start) / ROWS
+        db.close()
+        return insert, touch
+    finally:
+        for suffix in ("", "-journal", "-wal", "-shm"):
+            if os.path.exists(path + suffix):
+                os.remove(path + suffix)
+
+
+def execute(db, sql, args, batch):
+    for i in range(0, len(args), batch):
+        if batch > 1:
+            db.execute("BEGIN")
+        for a in args[i:i + batch]:
+            db.execute(sql, a)
+        if batch > 1:
+            db.execute("COMMIT")
+
+
+print("SQLite %s, %d rows of %d bytes" % (sqlite3.sqlite_version, ROWS, BLOB))
+for journal, synchronous in (("DELETE", "FULL"), ("WAL", "NORMAL")):
+    single = run(journal, synchronous, 1)
+    batched = run(journal, synchronous, BATCH)
+    print("journal %s, synchronous %s" % (journal, synchronous))
+    for name, i in (("store", 0), ("access", 1)):
+        print("  %-7s 1/transaction %9.1f us %8.0f/s   %d/transaction %7.1f us %8.0f/s   x%.0f" % (
+            name, single[i] * 1e6, 1 / single[i], BATCH, batched[i] * 1e6, 1 / batched[i],
+            single[i] / batched[i]))
@@ -0,0 +1,164 @@
+package httpimage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import android.graphics.Bitmap;
+
+
+public class BasicBitmapCacheTest {
+
+    private static Bitmap bitmap(int width, int height) {
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+    
+    
+    @Test
+    public void evictsLeastRecentlyStored() {
+        BasicBitmapCache cache = new BasicBitmapCache(3);
+        cache.storeData("a", bitmap(1, 1));
+        cache.storeData("b", bitmap(1, 1));
+        cache.storeData("c", bitmap(1, 1));
+        cache.storeData("d", bitmap(1, 1));
+        
+        assertFalse(cache.exists("a"));
+        assertTrue(cache.exists("b"));
+        assertTrue(cache.exists("c"));
+        assertTrue(cache.exists("d"));
+        assertEquals(3, cache.size());
+    }
+    
+    
+    @Test
+    public void loadRefreshesEvictionOrder() {
+        BasicBitmapCache cache = new BasicBitmapCache(3);
+        cache.storeData("a", bitmap(1, 1));
+        cache.storeData("b", bitmap(1, 1));
+        cache.storeData("c", bitmap(1, 1));
+        
+        cache.loadData("a");
+        cache.storeData("d", bitmap(1, 1));
+        assertFalse("b was the least recently used", cache.exists("b"));
+        
+        cache.peekData("c");
+        cache.storeData("e", bitmap(1, 1));
+        assertFalse("a was the least recently used", cache.exists("a"));
+        assertTrue(cache.exists("c"));
+        assertTrue(cache.exists("d"));
+        assertTrue(cache.exists("e"));
+    }
+    
+    
+    @Test
+    public void evictionOrderMatchesAccessOrder() {
+        BasicBitmapCache cache = new BasicBitmapCache(100);
+        for (int i = 0; i < 100; i++) {
+            cache.storeData("k" + i, bitmap(1, 1));
+        }
+        // touch the even ones, they become the most recently used in that order
+        for (int i = 0; i < 100; i += 2) {
+            cache.loadData("k" + i);
+        }
+        
+        for (int i = 1; i < 100; i += 2) {
+            assertEquals("k" + i, cache.findItemToInvalidate());
+            cache.invalidate("k" + i);
+        }
+        for (int i = 0; i < 100; i += 2) {
+            assertEquals("k" + i, cache.findItemToInvalidate());
+            cache.invalidate("k" + i);
+        }
+        assertNull(cache.findItemToInvalidate());
+    }
+    
+    
+    @Test
+    public void storeOfCachedKeyKeepsFirstBitmap() {
+        BasicBitmapCache cache = new BasicBitmapCache(3);
+        Bitmap first = bitmap(1, 1);
+        cache.storeData("a", first);
+        cache.storeData("a", bitmap(1, 1));
+        
+        assertSame(first, cache.loadData("a"));
+        assertEquals(1, cache.size());
+    }
+    
+    
+    @Test
+    public void sizeOfIsChargedAndRefunded() {
+        ByteBoundedBitmapCache cache = new ByteBoundedBitmapCache(1000);
+        cache.storeData("a", bitmap(10, 10)); // 400 bytes
+        cache.storeData("b", bitmap(5, 10));  // 200 bytes
+        assertEquals(600, cache.getSize());
+        
+        cache.invalidate("a");
+        assertEquals(200, cache.getSize());
+        
+        cache.storeData("c", bitmap(10, 10));
+        cache.storeData("d", bitmap(10, 10));
+        assertEquals(1000, cache.getSize());
+        
+        // no room for 400 more bytes: b, then c go
+        cache.storeData("e", bitmap(10, 10));
+        assertFalse(cache.exists("b"));
+        assertFalse(cache.exists("c"));
+        assertEquals(800, cache.getSize());
+        
+        cache.clear();
+        assertEquals(0, cache.getSize());
+    }
+    
+    
+    @Test
+    public void entryLargerThanFractionIsNotCached() {
+        ByteBoundedBitmapCache cache = new ByteBoundedBitmapCache(1000);
+        cache.storeData("small", bitmap(5, 5));
+        cache.storeData("huge", bitmap(20, 20)); // 1600 bytes
+        
+        assertFalse(cache.exists("huge"));
+        assertTrue(cache.exists("small"));
+        assertEquals(100, cache.getSize());
+    }
+    
+    
+    @Test
+    public void trimMemoryKeepsMostRecentlyUsed() {
+        BasicBitmapCache cache = new BasicBitmapCache(8);
+        for (int i = 0; i < 8; i++) {
+            cache.storeData("k" + i, bitmap(1, 1));
+        }
+        
+        cache.trimMemory(BitmapCache.TRIM_MEMORY_MODERATE);
+        assertEquals(4, cache.getSize());
+        for (int i = 4; i < 8; i++) {
+            assertTrue(cache.exists("k" + i));
+        }
+        
+        cache.trimMemory(BitmapCache.TRIM_MEMORY_COMPLETE);
+        assertEquals(0, cache.getSize());
+        assertEquals(0, cache.size());
+    }
+    
+    
+    /*
+     * With a scan for the oldest entry, each eviction would cost O(n), 
+     * and this would take in the order of 10^10 steps.
+     */
+    @Test(timeout = 10000)
+    public void evictionIsConstantTime() {
+        int capacity = 100000;
+        BasicBitmapCache cache = new BasicBitmapCache(capacity);
+        Bitmap data = bitmap(1, 1);
+        for (int i = 0; i < 3 * capacity; i++) {
+            cache.storeData("k" + i, data);
+            if (i % 3 == 0) 
+                cache.loadData("k" + (i / 2));
+        }
+        assertEquals(capacity, cache.size());
+    }
+}
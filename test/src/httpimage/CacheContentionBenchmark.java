@@ -0,0 +1,92 @@
+package httpimage;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.graphics.Bitmap;
+
+
+/**
+ * Throughput of ConcurrentBitmapCache against the synchronized BasicBitmapCache, 
+ * with reader threads standing for the UI thread and writer threads for the loaders. 
+ * Keys follow a skewed distribution, so most reads hit.
+ * 
+ *   java httpimage.CacheContentionBenchmark [readers] [writers] [seconds]
+ */
+public class CacheContentionBenchmark {
+
+    private static final int CAPACITY = 256;
+    private static final int KEY_SPACE = 1024;
+    
+    
+    public static void main(String[] args) throws Exception {
+        int readers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int writers = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        
+        String[] keys = new String[KEY_SPACE];
+        for (int i = 0; i < KEY_SPACE; i++) {
+            keys[i] = "key" + i;
+        }
+        Bitmap data = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
+        
+        for (int round = 0; round < 2; round++) { // the first round warms up
+            report("BasicBitmapCache", run(new BasicBitmapCache(CAPACITY), keys, data, readers, writers, seconds), round);
+            report("ConcurrentBitmapCache", run(new ConcurrentBitmapCache(CAPACITY), keys, data, readers, writers, seconds), round);
+        }
+    }
+    
+    
+    private static void report(String name, long[] ops, int round) {
+        if (round > 0) 
+            System.out.printf("%-22s reads %,12d/s  writes %,12d/s%n", name, ops[0], ops[1]);
+    }
+    
+    
+    /* operations per second, of the readers and of the writers */
+    private static long[] run(final BitmapCache cache, final String[] keys, final Bitmap data, 
+            int readers, int writers, int seconds) throws InterruptedException {
+        
+        for (String key : keys) {
+            cache.storeData(key, data);
+        }
+        
+        final AtomicLong reads = new AtomicLong();
+        final AtomicLong writes = new AtomicLong();
+        final long deadline = System.nanoTime() + seconds * 1000000000L;
+        final CountDownLatch done = new CountDownLatch(readers + writers);
+        
+        for (int t = 0; t < readers + writers; t++) {
+            final boolean reader = t < readers;
+            final Random random = new Random(t);
+            new Thread() {
+                @Override
+                public void run() {
+                    long count = 0;
+                    while ((count & 1023) != 0 || System.nanoTime() < deadline) {
+                        String key = keys[skewed(random)];
+                        if (reader) {
+                            cache.peekData(key);
+                        }
+                        else if (cache.peekData(key) == null) {
+                            cache.storeData(key, data);
+                        }
+                        count++;
+                    }
+                    (reader ? reads : writes).addAndGet(count);
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        return new long[] { reads.get() / seconds, writes.get() / seconds };
+    }
+    
+    
+    /* index in [0, KEY_SPACE), small ones much more likely */
+    private static int skewed(Random random) {
+        double u = random.nextDouble();
+        return (int) (KEY_SPACE * u * u * u);
+    }
+}
@@ -0,0 +1,70 @@
+package httpimage;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.graphics.Bitmap;
+
+
+/**
+ * Replays a key trace against the memory caches and prints their hit ratios: 
+ * a request that misses stores the key, as HttpImageManager does after a load.
+ * 
+ *   java httpimage.CacheSimulator [capacity] [trace file, or hotscan|zipf]
+ * 
+ * A trace file has one key per line, see TraceGenerator.
+ */
+public class CacheSimulator {
+
+    public static void main(String[] args) throws IOException {
+        int capacity = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        String source = args.length > 1 ? args[1] : TraceGenerator.HOT_SCAN;
+        
+        String[] trace;
+        if (TraceGenerator.HOT_SCAN.equals(source) || TraceGenerator.ZIPF.equals(source)) {
+            trace = TraceGenerator.generate(source, 100000, 42);
+        }
+        else {
+            trace = read(source);
+        }
+        
+        System.out.printf("%s, %d requests, capacity %d%n", source, trace.length, capacity);
+        System.out.printf("  %-22s %6.2f%%%n", "BasicBitmapCache (LRU)", 100 * hitRatio(new BasicBitmapCache(capacity), trace));
+        System.out.printf("  %-22s %6.2f%%%n", "TinyLfuBitmapCache", 100 * hitRatio(new TinyLfuBitmapCache(capacity), trace));
+    }
+    
+    
+    public static double hitRatio(BitmapCache cache, String[] trace) {
+        Bitmap data = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
+        int hits = 0;
+        for (String key : trace) {
+            if (cache.loadData(key) != null) {
+                hits++;
+            }
+            else {
+                cache.storeData(key, data);
+            }
+        }
+        return (double) hits / trace.length;
+    }
+    
+    
+    private static String[] read(String file) throws IOException {
+        List<String> keys = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() > 0) 
+                    keys.add(line);
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return keys.toArray(new String[keys.size()]);
+    }
+}
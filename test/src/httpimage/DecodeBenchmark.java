@@ -0,0 +1,108 @@
+package httpimage;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import android.graphics.Bitmap;
+
+
+/**
+ * Heap allocated and time per decode of a stored entry: read whole into a byte[] and
+ * decoded from it, as FileSystemPersistence did, against streamed to the decoder through
+ * EntryChecksum.decodeFile(). The decoder alone, from bytes already in memory, is measured
+ * too: on the JVM it allocates the pixels in the heap, which BitmapFactory doesn't, so
+ * what each path costs on its own is its row minus that one.
+ *
+ *   java httpimage.DecodeBenchmark [decodes per measure]
+ */
+public class DecodeBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int decodes = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+
+        run(320, 240, "jpg", 50, false); // warm up
+        run(320, 240, "jpg", decodes, true);
+        run(1024, 768, "jpg", decodes, true);
+        run(1024, 768, "png", decodes / 4, true);
+    }
+
+
+    private static void run(int width, int height, String format, int decodes, boolean report) throws IOException {
+        byte[] data = encode(width, height, format);
+        File file = File.createTempFile("decode", ".bin");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(EntryChecksum.wrap(data));
+            }
+            finally {
+                out.close();
+            }
+
+            if (report)
+                System.out.printf("%dx%d %s, %,d bytes%n", width, height, format, data.length);
+            for (int mode = 0; mode < 3; mode++) {
+                long bytes = allocatedBytes();
+                long start = System.nanoTime();
+                for (int i = 0; i < decodes; i++) {
+                    if (decode(mode, file, data) == null)
+                        throw new IOException("not decoded");
+                }
+                long ns = (System.nanoTime() - start) / decodes;
+                bytes = (allocatedBytes() - bytes) / decodes;
+
+                if (report)
+                    System.out.printf("  %-14s %,12d bytes/decode %,12d ns/decode%n",
+                            new String[] { "decoder alone", "byte[] read", "streamed" }[mode], bytes, ns);
+            }
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+
+    private static Bitmap decode(int mode, File file, byte[] data) throws IOException {
+        switch (mode) {
+        case 0:
+            return BitmapUtil.decodeByteArray(data, DecodeOptions.DEFAULT, null);
+        case 1:
+            byte[] stored = EntryChecksum.readFile(file);
+            return BitmapUtil.decodeByteArray(stored, DecodeOptions.DEFAULT, null);
+        default:
+            return EntryChecksum.decodeFile(file, DecodeOptions.DEFAULT, null);
+        }
+    }
+
+
+    /* A photo-like image: smooth gradients with some noise, so that it compresses as photos do. */
+    private static byte[] encode(int width, int height, String format) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(1);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = (x * 255 / width + random.nextInt(16)) & 0xff;
+                int g = (y * 255 / height + random.nextInt(16)) & 0xff;
+                int b = ((x + y) * 127 / (width + height) + random.nextInt(16)) & 0xff;
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, format, out);
+        return out.toByteArray();
+    }
+
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,67 @@
+package httpimage;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+
+public class DecodeBudgetTest {
+
+    @Test(timeout = 10000)
+    public void largeDecodeIsNotOvertaken() throws InterruptedException {
+        final DecodeBudget budget = new DecodeBudget(100);
+        final List<String> admitted = Collections.synchronizedList(new ArrayList<String>());
+        budget.acquire(60);
+        
+        Thread large = decode(budget, "large", 150, admitted);
+        awaitWaiting(large);
+        // fits next to the 60 in flight, but arrives after the large one
+        Thread small = decode(budget, "small", 10, admitted);
+        awaitWaiting(small);
+        assertEquals(0, admitted.size());
+        
+        budget.release(60);
+        large.join();
+        small.join();
+        assertEquals("large", admitted.get(0));
+        assertEquals("small", admitted.get(1));
+        assertEquals(0, budget.getInFlightBytes());
+    }
+    
+    
+    @Test(timeout = 10000)
+    public void decodesThatFitRunTogether() throws InterruptedException {
+        DecodeBudget budget = new DecodeBudget(100);
+        budget.acquire(40);
+        budget.acquire(40);
+        assertEquals(80, budget.getInFlightBytes());
+        assertEquals(0, budget.getWaitCount());
+    }
+    
+    
+    /* A thread taking bytes from the budget, then giving them back. */
+    private static Thread decode(final DecodeBudget budget, final String name, final long bytes, 
+            final List<String> admitted) {
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                budget.acquire(bytes);
+                admitted.add(name);
+                budget.release(bytes);
+            }
+        }, name);
+        t.start();
+        return t;
+    }
+    
+    
+    private static void awaitWaiting(Thread t) throws InterruptedException {
+        while (t.getState() != Thread.State.WAITING && t.isAlive()) {
+            Thread.sleep(5);
+        }
+    }
+}
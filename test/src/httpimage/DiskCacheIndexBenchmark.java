@@ -0,0 +1,106 @@
+package httpimage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+
+
+/**
+ * Startup cost of DiskCacheIndex over a sharded cache directory: the directory scan when 
+ * there is no journal, the reconciliation after a damaged journal, and the replay of an 
+ * intact one.
+ * 
+ *   java httpimage.DiskCacheIndexBenchmark [files...] 
+ */
+public class DiskCacheIndexBenchmark {
+
+    private static final int LEVELS = 2;
+    
+    
+    public static void main(String[] args) throws IOException {
+        int[] counts = { 1000, 10000, 100000 };
+        if (args.length > 0) {
+            counts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                counts[i] = Integer.parseInt(args[i]);
+            }
+        }
+        
+        for (int count : counts) {
+            File dir = File.createTempFile("bench", "");
+            dir.delete();
+            try {
+                populate(dir, count);
+                
+                long scan = time(dir);
+                DiskCacheIndex index = new DiskCacheIndex(dir);
+                index.load();
+                index.close();
+                long replay = time(dir);
+                
+                File journal = new File(dir, DiskCacheIndex.JOURNAL_FILE_NAME);
+                FileWriter w = new FileWriter(journal, true);
+                w.write("S cut-sho"); // a record cut short
+                w.close();
+                long reconcile = time(dir);
+                
+                System.out.printf("%,8d files  scan %,6d ms  reconcile %,6d ms  replay %,6d ms%n", 
+                        count, scan, reconcile, replay);
+            }
+            finally {
+                DiskCacheIndexTest.delete(dir);
+            }
+        }
+    }
+    
+    
+    private static void populate(File dir, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            String key = String.format("%032x", (i * 0x9E3779B97F4A7C15L) & Long.MAX_VALUE);
+            StringBuilder path = new StringBuilder();
+            for (int l = 0; l < LEVELS; l++) {
+                path.append(key, 2 * l, 2 * l + 2).append(File.separatorChar);
+            }
+            File f = new File(dir, path.append(key).toString());
+            f.getParentFile().mkdirs();
+            DiskCacheIndexTest.write(f, 100);
+        }
+    }
+    
+    
+    /* ms to load the index; the journal is kept as it was found */
+    private static long time(File dir) throws IOException {
+        File journal = new File(dir, DiskCacheIndex.JOURNAL_FILE_NAME);
+        File saved = new File(dir, ".saved");
+        boolean hasJournal = journal.exists();
+        if (hasJournal) 
+            copy(journal, saved);
+        
+        DiskCacheIndex index = new DiskCacheIndex(dir);
+        long start = System.nanoTime();
+        index.load();
+        long ms = (System.nanoTime() - start) / 1000000;
+        index.close();
+        
+        if (hasJournal) 
+            saved.renameTo(journal);
+        else 
+            journal.delete();
+        return ms;
+    }
+    
+    
+    private static void copy(File from, File to) throws IOException {
+        FileInputStream in = new FileInputStream(from);
+        FileOutputStream out = new FileOutputStream(to);
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        in.close();
+        out.close();
+    }
+}
@@ -0,0 +1,132 @@
+package httpimage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class DiskCacheIndexTest {
+
+    private File mDir;
+    
+    
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("index", "");
+        mDir.delete();
+        mDir.mkdirs();
+    }
+    
+    
+    @After
+    public void tearDown() {
+        delete(mDir);
+    }
+    
+    
+    @Test
+    public void sizeOfDoesNotChangeEvictionOrder() {
+        DiskCacheIndex index = new DiskCacheIndex(mDir);
+        index.load();
+        index.put("a", 10);
+        index.put("b", 10);
+        index.put("c", 10);
+        
+        assertEquals(10, index.sizeOf("a"));
+        assertEquals(-1, index.sizeOf("x"));
+        assertEquals(Arrays.asList("a"), index.evict(20));
+    }
+    
+    
+    @Test
+    public void orderSurvivesRestart() {
+        DiskCacheIndex index = new DiskCacheIndex(mDir);
+        index.load();
+        index.put("a", 10);
+        index.put("b", 20);
+        index.put("c", 30);
+        index.touch("a");
+        index.sizeOf("b");
+        index.put("b", 25); // a store makes it the most recently used
+        index.close();
+        
+        DiskCacheIndex reloaded = new DiskCacheIndex(mDir);
+        reloaded.load();
+        assertEquals(65, reloaded.getTotalSize());
+        assertEquals(Arrays.asList("c", "a", "b"), reloaded.evict(0));
+    }
+    
+    
+    @Test
+    public void removalsSurviveRestart() {
+        DiskCacheIndex index = new DiskCacheIndex(mDir);
+        index.load();
+        index.put("a", 10);
+        index.put("b", 20);
+        index.remove("a");
+        List<String> evicted = index.evict(0);
+        assertEquals(Arrays.asList("b"), evicted);
+        index.put("c", 5);
+        index.close();
+        
+        DiskCacheIndex reloaded = new DiskCacheIndex(mDir);
+        reloaded.load();
+        assertFalse(reloaded.contains("a"));
+        assertFalse(reloaded.contains("b"));
+        assertTrue(reloaded.contains("c"));
+        assertEquals(5, reloaded.getTotalSize());
+    }
+    
+    
+    /* A journal cut short by a crash: what was recovered is checked against the directory. */
+    @Test
+    public void truncatedJournalIsReconciled() throws IOException {
+        write(new File(mDir, "a"), 10);
+        write(new File(mDir, "b"), 20);
+        
+        DiskCacheIndex index = new DiskCacheIndex(mDir);
+        index.load();
+        index.close();
+        
+        // a record cut short, for a file that was written
+        FileOutputStream journal = new FileOutputStream(new File(mDir, DiskCacheIndex.JOURNAL_FILE_NAME), true);
+        journal.write("S c 3".getBytes());
+        journal.close();
+        write(new File(mDir, "c"), 30);
+        
+        DiskCacheIndex reloaded = new DiskCacheIndex(mDir);
+        reloaded.load();
+        assertTrue(reloaded.contains("c"));
+        assertEquals(30, reloaded.sizeOf("c"));
+        assertEquals(60, reloaded.getTotalSize());
+    }
+    
+    
+    static void write(File file, int length) throws IOException {
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[length]);
+        out.close();
+    }
+    
+    
+    static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+}
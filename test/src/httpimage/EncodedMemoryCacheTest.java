@@ -0,0 +1,107 @@
+package httpimage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import android.graphics.Bitmap;
+
+
+public class EncodedMemoryCacheTest {
+
+    /* A storage of encoded data, counting its reads. */
+    private static class Storage implements EncodedBitmapCache {
+        final Map<String, byte[]> data = new HashMap<String, byte[]>();
+        int reads;
+        int loads;
+        InputStream lastStream;
+        
+        public byte[] loadBinary(String key) {
+            reads++;
+            return data.get(key);
+        }
+        
+        public InputStream openBinary(String key) {
+            reads++;
+            byte[] binary = data.get(key);
+            lastStream = binary == null ? null : new ByteArrayInputStream(binary);
+            return lastStream;
+        }
+        
+        public boolean exists(String key) { return data.containsKey(key); }
+        public void invalidate(String key) { data.remove(key); }
+        public Bitmap loadData(String key) { loads++; return null; }
+        public Bitmap peekData(String key) { return null; }
+        public void storeData(String key, Object binary) { data.put(key, (byte[]) binary); }
+        public void clear() { data.clear(); }
+        public void trimMemory(int level) {}
+    }
+    
+    
+    @Test
+    public void oversizedRestoreDropsStaleData() {
+        Storage storage = new Storage();
+        EncodedMemoryCache cache = new EncodedMemoryCache(storage, 400);
+        cache.storeData("a", new byte[10]);
+        assertEquals(10, cache.getSize());
+        
+        byte[] large = new byte[200]; // over a quarter of the tier
+        cache.storeData("a", large);
+        assertEquals(0, cache.getSize());
+        
+        assertSame(large, cache.loadBinary("a"));
+        assertEquals(1, storage.reads);
+    }
+    
+    
+    @Test
+    public void storageReadsFillTheTier() {
+        Storage storage = new Storage();
+        byte[] binary = new byte[] { 1, 2, 3 };
+        storage.data.put("a", binary);
+        EncodedMemoryCache cache = new EncodedMemoryCache(storage, 400);
+        
+        assertArrayEquals(binary, cache.loadBinary("a"));
+        assertArrayEquals(binary, cache.loadBinary("a"));
+        assertEquals(1, storage.reads);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(3, cache.getSize());
+    }
+    
+    
+    @Test
+    public void oversizedDataIsLeftToTheStorage() throws IOException {
+        Storage storage = new Storage();
+        storage.data.put("a", new byte[100 * 1024]);
+        EncodedMemoryCache cache = new EncodedMemoryCache(storage, 64 * 1024);
+        
+        assertNull(cache.loadData("a"));
+        // no more than a quarter of the tier was read, the storage decoded it
+        assertTrue(storage.lastStream.available() > 64 * 1024);
+        assertEquals(1, storage.loads);
+        assertEquals(0, cache.getSize());
+    }
+    
+    
+    @Test
+    public void tierIsBoundedByBytes() {
+        EncodedMemoryCache cache = new EncodedMemoryCache(new Storage(), 400);
+        for (int i = 0; i < 10; i++) {
+            cache.storeData("k" + i, new byte[100]);
+        }
+        assertEquals(400, cache.getSize());
+        
+        cache.trimMemory(BitmapCache.TRIM_MEMORY_MODERATE);
+        assertEquals(200, cache.getSize());
+    }
+}
@@ -0,0 +1,93 @@
+package httpimage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+
+/**
+ * Latency of exists(), loadBinary() and storeData() of FileSystemPersistence, with the 
+ * flat layout against a tree of two levels, as the number of entries grows. The index 
+ * is loaded before the timings; see DiskCacheIndexBenchmark for its startup.
+ * 
+ *   java httpimage.FileSystemPersistenceBenchmark [entries...]
+ */
+public class FileSystemPersistenceBenchmark {
+
+    private static final int ENTRY_SIZE = 1024;
+    private static final int OPERATIONS = 10000;
+    
+    
+    public static void main(String[] args) throws IOException {
+        int[] counts = { 1000, 10000, 100000 };
+        if (args.length > 0) {
+            counts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                counts[i] = Integer.parseInt(args[i]);
+            }
+        }
+        
+        // warm up
+        run(2000, FileSystemPersistence.FLAT, false);
+        run(2000, 2, false);
+        
+        for (int count : counts) {
+            run(count, FileSystemPersistence.FLAT, true);
+            run(count, 2, true);
+        }
+    }
+    
+    
+    private static void run(int count, int levels, boolean report) throws IOException {
+        File dir = File.createTempFile("bench", "");
+        dir.delete();
+        try {
+            byte[] data = new byte[ENTRY_SIZE];
+            new Random(1).nextBytes(data);
+            
+            FileSystemPersistence store = new FileSystemPersistence(dir.getPath(), FileSystemPersistence.UNBOUNDED, levels);
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                store.storeData(keyOf(i), data);
+            }
+            long storeNs = (System.nanoTime() - start) / count;
+            store.flush();
+            
+            // a new instance, with the index loaded, as after a restart
+            store = new FileSystemPersistence(dir.getPath(), FileSystemPersistence.UNBOUNDED, levels);
+            store.exists(keyOf(0));
+            
+            Random random = new Random(2);
+            int found = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < OPERATIONS; i++) {
+                // half of them misses
+                int k = random.nextInt(2 * count);
+                if (store.exists(keyOf(k))) 
+                    found++;
+            }
+            long existsNs = (System.nanoTime() - start) / OPERATIONS;
+            
+            start = System.nanoTime();
+            for (int i = 0; i < OPERATIONS; i++) {
+                if (store.loadBinary(keyOf(random.nextInt(count))) != null) 
+                    found++;
+            }
+            long loadNs = (System.nanoTime() - start) / OPERATIONS;
+            store.flush();
+            
+            if (report) 
+                System.out.printf("%,8d entries  %-8s  exists %,8d ns  loadBinary %,8d ns  storeData %,8d ns  (%d found)%n", 
+                        count, levels == FileSystemPersistence.FLAT ? "flat" : levels + " levels", 
+                        existsNs, loadNs, storeNs, found);
+        }
+        finally {
+            DiskCacheIndexTest.delete(dir);
+        }
+    }
+    
+    
+    private static String keyOf(int i) {
+        return String.format("%032x", (i * 0x9E3779B97F4A7C15L) & Long.MAX_VALUE);
+    }
+}
@@ -0,0 +1,228 @@
+package httpimage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.graphics.Bitmap;
+
+
+/**
+ * Kills a writer process at random points of its stores and checks what it leaves behind.
+ * Also reads entries back as streams, and damaged or legacy files.
+ */
+public class FileSystemPersistenceTest {
+
+    private static final long BUDGET = 64 * 1024;
+    private static final int KEYS = 200;
+    
+    private File mDir;
+    
+    
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("store", "");
+        mDir.delete();
+        mDir.mkdirs();
+    }
+    
+    
+    @After
+    public void tearDown() {
+        DiskCacheIndexTest.delete(mDir);
+    }
+    
+    
+    @Test
+    public void writerKilledMidWrite() throws Exception {
+        Random random = new Random(1);
+        for (int round = 0; round < 5; round++) {
+            Process writer = startWriter(round);
+            BufferedReader out = new BufferedReader(new InputStreamReader(writer.getInputStream()));
+            assertEquals("ready", out.readLine());
+            Thread.sleep(50 + random.nextInt(250));
+            writer.destroy();
+            writer.waitFor();
+            
+            checkStore();
+        }
+    }
+    
+    
+    @Test
+    public void firstStoreIsKept() {
+        // the first store loads the index, which sweeps temporary files
+        FileSystemPersistence store = new FileSystemPersistence(mDir.getPath(), BUDGET, 1);
+        store.storeData("abcdef", new byte[10]);
+        assertTrue(store.exists("abcdef"));
+    }
+    
+    
+    @Test
+    public void openBinaryStreamsTheVerifiedData() throws IOException {
+        FileSystemPersistence store = new FileSystemPersistence(mDir.getPath(), BUDGET, 1);
+        byte[] binary = new byte[5000];
+        new Random(2).nextBytes(binary);
+        store.storeData("abcdef", binary);
+        assertNull(store.openBinary("missing"));
+        
+        InputStream in = store.openBinary("abcdef");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] buf = new byte[1024];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+            assertTrue(((EntryChecksum.VerifyingInputStream) in).verify());
+        }
+        finally {
+            in.close();
+        }
+        assertArrayEquals(binary, out.toByteArray());
+    }
+    
+    
+    @Test
+    public void corruptedEntryIsDroppedAndCounted() throws IOException {
+        FileSystemPersistence store = new FileSystemPersistence(mDir.getPath());
+        store.storeData("abcdef", ImageHeaderTest.read("alpha.png"));
+        assertNotNull(store.loadData("abcdef"));
+        
+        File file = new File(mDir, "abcdef");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long pos = EntryChecksum.HEADER_SIZE + (file.length() - EntryChecksum.HEADER_SIZE) / 2;
+            raf.seek(pos);
+            int b = raf.read();
+            raf.seek(pos);
+            raf.write(b ^ 0x01);
+        }
+        finally {
+            raf.close();
+        }
+        
+        // reported as missing, so that it is downloaded again
+        assertNull(store.loadData("abcdef"));
+        assertEquals(1, store.getCorruptionCount());
+        assertFalse(store.exists("abcdef"));
+        assertFalse(file.exists());
+    }
+    
+    
+    @Test
+    public void legacyFileWithoutHeaderLoads() throws IOException {
+        byte[] image = ImageHeaderTest.read("alpha.png");
+        FileOutputStream out = new FileOutputStream(new File(mDir, "abcdef"));
+        out.write(image);
+        out.close();
+        
+        // no journal yet, the file is found by scanning the directory
+        FileSystemPersistence store = new FileSystemPersistence(mDir.getPath());
+        Bitmap bitmap = store.loadData("abcdef");
+        assertNotNull(bitmap);
+        assertEquals(16, bitmap.getWidth());
+        assertArrayEquals(image, store.loadBinary("abcdef"));
+        assertEquals(0, store.getCorruptionCount());
+    }
+    
+    
+    /* Every file left is indexed, counted and intact; no temporary file survives. */
+    private void checkStore() {
+        // unbounded, so that no eviction runs behind the checks
+        FileSystemPersistence store = new FileSystemPersistence(mDir.getPath(), FileSystemPersistence.UNBOUNDED, 1);
+        
+        Map<String, File> files = new HashMap<String, File>();
+        collect(mDir, files);
+        long onDisk = 0;
+        for (Map.Entry<String, File> e : files.entrySet()) {
+            String key = e.getKey();
+            assertTrue("not indexed: " + key, store.exists(key));
+            onDisk += e.getValue().length();
+        }
+        assertTrue(onDisk <= store.getSize());
+        
+        for (String key : files.keySet()) {
+            byte[] binary = store.loadBinary(key);
+            assertNotNull(key, binary);
+            assertEquals(sizeOf(key), binary.length);
+            assertEquals((byte) key.hashCode(), binary[binary.length - 1]);
+        }
+        for (String name : mDir.list()) {
+            assertFalse(name, name.endsWith(".tmp"));
+        }
+        store.flush();
+    }
+    
+    
+    private void collect(File dir, Map<String, File> out) {
+        for (File f : dir.listFiles()) {
+            if (f.isDirectory()) 
+                collect(f, out);
+            else if (!f.getName().startsWith(".")) 
+                out.put(f.getName(), f);
+        }
+    }
+    
+    
+    private Process startWriter(int seed) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), 
+                FileSystemPersistenceTest.class.getName(), mDir.getPath(), String.valueOf(seed));
+        pb.redirectErrorStream(true);
+        return pb.start();
+    }
+    
+    
+    private static String keyOf(int i) {
+        return String.format("%08x", (i * 0x9E3779B1) & 0xffffffffL);
+    }
+    
+    
+    private static int sizeOf(String key) {
+        return 512 + (key.hashCode() & 2047);
+    }
+    
+    
+    /**
+     * The writer: stores over a budget small enough to evict, until killed.
+     */
+    public static void main(String[] args) {
+        FileSystemPersistence store = new FileSystemPersistence(args[0], BUDGET, 1);
+        Random random = new Random(Long.parseLong(args[1]));
+        System.out.println("ready");
+        System.out.flush();
+        
+        while (true) {
+            String key = keyOf(random.nextInt(KEYS));
+            if (random.nextInt(10) == 0) {
+                store.invalidate(key);
+                continue;
+            }
+            byte[] binary = new byte[sizeOf(key)];
+            binary[binary.length - 1] = (byte) key.hashCode();
+            store.storeData(key, binary);
+            if (random.nextInt(4) == 0) 
+                store.loadBinary(key);
+        }
+    }
+}
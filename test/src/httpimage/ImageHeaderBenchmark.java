@@ -0,0 +1,112 @@
+package httpimage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+
+/**
+ * Cost of reading the dimensions of the sample images of res/images with ImageHeader, 
+ * against the bounds-only read of the JVM's ImageIO readers, which stands for the 
+ * inJustDecodeBounds pass of BitmapFactory. Run from test/.
+ * 
+ *   java httpimage.ImageHeaderBenchmark [seconds per measure]
+ */
+public class ImageHeaderBenchmark {
+
+    // keeps the results alive, so that the calls aren't optimized away
+    static volatile long sSink;
+    
+    private static final String[] SAMPLES = {
+        "baseline.jpg", "progressive.jpg", "cmyk.jpg", "exif.jpg", 
+        "interlaced.png", "alpha.png", "palette-trns.png", "interlaced.gif" 
+    };
+    
+    
+    public static void main(String[] args) throws IOException {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+        
+        byte[][] data = new byte[SAMPLES.length][];
+        for (int i = 0; i < SAMPLES.length; i++) {
+            data[i] = ImageHeaderTest.read(SAMPLES[i]);
+        }
+        
+        for (int round = 0; round < 2; round++) { // the first round warms up
+            for (int i = 0; i < SAMPLES.length; i++) {
+                double header = run(new ImageHeaderTask(data[i]), seconds);
+                double imageIO = run(new ImageIOTask(data[i]), seconds);
+                if (round > 0) 
+                    System.out.printf("%-18s ImageHeader %,10.0f ns   ImageIO %,10.0f ns%n", SAMPLES[i], header, imageIO);
+            }
+        }
+    }
+    
+    
+    private static abstract class Task {
+        abstract int run() throws IOException;
+    }
+    
+    
+    private static class ImageHeaderTask extends Task {
+        private final byte[] mData;
+        
+        ImageHeaderTask(byte[] data) {
+            mData = data;
+        }
+        
+        @Override
+        int run() {
+            return ImageHeader.parse(mData, 0, mData.length).getWidth();
+        }
+    }
+    
+    
+    private static class ImageIOTask extends Task {
+        private final byte[] mData;
+        
+        ImageIOTask(byte[] data) {
+            mData = data;
+        }
+        
+        @Override
+        int run() throws IOException {
+            ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(mData));
+            try {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(in);
+                    return reader.getWidth(0);
+                }
+                finally {
+                    reader.dispose();
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+    }
+    
+    
+    /* ns per call */
+    private static double run(Task task, int seconds) throws IOException {
+        long sink = 0;
+        long count = 0;
+        long start = System.nanoTime();
+        long deadline = start + seconds * 1000000000L;
+        long now;
+        while ((now = System.nanoTime()) < deadline) {
+            for (int i = 0; i < 100; i++) {
+                sink += task.run();
+            }
+            count += 100;
+        }
+        sSink = sink;
+        return (double) (now - start) / count;
+    }
+}
@@ -0,0 +1,147 @@
+package httpimage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+
+/**
+ * ImageHeader against the sample files of res/images.
+ */
+public class ImageHeaderTest {
+
+    static final File SAMPLES = new File("res/images");
+    
+    
+    @Test
+    public void baselineJpeg() throws IOException {
+        assertHeader("baseline.jpg", ImageHeader.MIME_JPEG, 64, 48, false);
+    }
+    
+    
+    @Test
+    public void progressiveJpeg() throws IOException {
+        assertHeader("progressive.jpg", ImageHeader.MIME_JPEG, 64, 48, false);
+    }
+    
+    
+    @Test
+    public void cmykJpeg() throws IOException {
+        assertHeader("cmyk.jpg", ImageHeader.MIME_JPEG, 40, 30, false);
+    }
+    
+    
+    @Test
+    public void jpegWithExifAndFillBytes() throws IOException {
+        assertHeader("exif.jpg", ImageHeader.MIME_JPEG, 64, 48, false);
+    }
+    
+    
+    @Test
+    public void interlacedPng() throws IOException {
+        assertHeader("interlaced.png", ImageHeader.MIME_PNG, 33, 17, false);
+    }
+    
+    
+    @Test
+    public void pngAlpha() throws IOException {
+        assertHeader("alpha.png", ImageHeader.MIME_PNG, 16, 9, true);
+        assertHeader("palette-trns.png", ImageHeader.MIME_PNG, 12, 10, true);
+        assertHeader("gray.png", ImageHeader.MIME_PNG, 30, 20, false);
+    }
+    
+    
+    @Test
+    public void interlacedGif() throws IOException {
+        assertHeader("interlaced.gif", ImageHeader.MIME_GIF, 21, 13, true);
+    }
+    
+    
+    @Test
+    public void truncated() throws IOException {
+        assertNoHeader("truncated-header.jpg");
+        assertNoHeader("truncated-header.png");
+        assertNoHeader("truncated.gif");
+        
+        // the dimensions are there, the rest of the image isn't needed
+        assertHeader("truncated-body.jpg", ImageHeader.MIME_JPEG, 64, 48, false);
+        // the chunks after IHDR are cut short, so alpha can't be ruled out
+        assertHeader("truncated-after-ihdr.png", ImageHeader.MIME_PNG, 30, 20, true);
+    }
+    
+    
+    @Test
+    public void unknownFormat() {
+        byte[] data = "<html>not an image</html>".getBytes();
+        assertNull(ImageHeader.parse(data, 0, data.length));
+        assertNull(ImageHeader.parse(null, 0, 0));
+    }
+    
+    
+    @Test
+    public void streamIsReadOnlyUpToTheHeader() throws IOException {
+        byte[] data = read("baseline.jpg");
+        InputStream is = new ByteArrayInputStream(data);
+        assertNotNull(ImageHeader.read(is));
+        assertTrue(is.available() > data.length / 2);
+    }
+    
+    
+    @Test
+    public void parseAtOffset() throws IOException {
+        byte[] image = read("alpha.png");
+        byte[] data = new byte[image.length + 10];
+        System.arraycopy(image, 0, data, 7, image.length);
+        ImageHeader header = ImageHeader.parse(data, 7, image.length);
+        assertNotNull(header);
+        assertEquals(ImageHeader.MIME_PNG, header.getMimeType());
+        assertEquals(16, header.getWidth());
+    }
+    
+    
+    private static void assertHeader(String name, String mimeType, int width, int height, boolean hasAlpha) 
+            throws IOException {
+        byte[] data = read(name);
+        ImageHeader header = ImageHeader.parse(data, 0, data.length);
+        assertNotNull(name, header);
+        assertEquals(name, mimeType, header.getMimeType());
+        assertEquals(name, width, header.getWidth());
+        assertEquals(name, height, header.getHeight());
+        assertEquals(name, hasAlpha, header.hasAlpha());
+    }
+    
+    
+    private static void assertNoHeader(String name) throws IOException {
+        byte[] data = read(name);
+        assertNull(name, ImageHeader.parse(data, 0, data.length));
+    }
+    
+    
+    static byte[] read(String name) throws IOException {
+        File f = new File(SAMPLES, name);
+        byte[] data = new byte[(int) f.length()];
+        FileInputStream in = new FileInputStream(f);
+        try {
+            int n = 0;
+            while (n < data.length) {
+                int r = in.read(data, n, data.length - n);
+                if (r < 0) 
+                    throw new IOException("unexpected end of " + f);
+                n += r;
+            }
+        }
+        finally {
+            in.close();
+        }
+        return data;
+    }
+}
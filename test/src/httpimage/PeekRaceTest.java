@@ -0,0 +1,165 @@
+package httpimage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import android.graphics.Bitmap;
+
+
+/**
+ * peekData(), as HttpImageManager.loadImage() uses it, racing stores and evictions. 
+ * A peek may return a bitmap evicted while it runs, but never a bitmap of another key, 
+ * nor one that had already been evicted to the pool, or recycled, when it started.
+ */
+public class PeekRaceTest {
+
+    private static final int CAPACITY = 32;
+    private static final int KEYS = 128;
+    private static final int READERS = 3;
+    private static final int WRITERS = 3;
+    private static final long DURATION_MS = 1000;
+    
+    
+    /* A pool recording when each bitmap was handed to it. */
+    private static class RecordingPool extends BitmapPool {
+        final AtomicLong clock;
+        final Map<Bitmap, Long> evictedAt = new ConcurrentHashMap<Bitmap, Long>();
+        
+        RecordingPool(AtomicLong clock) {
+            super(Integer.MAX_VALUE);
+            this.clock = clock;
+        }
+        
+        @Override
+        public boolean put(Bitmap bitmap) {
+            evictedAt.put(bitmap, clock.incrementAndGet());
+            return false; // not kept, so that nothing is reused
+        }
+    }
+    
+    
+    @Test
+    public void basicCache() throws Exception {
+        AtomicLong clock = new AtomicLong();
+        RecordingPool pool = new RecordingPool(clock);
+        BasicBitmapCache cache = new BasicBitmapCache(CAPACITY);
+        cache.setBitmapPool(pool);
+        race(cache, pool, clock);
+    }
+    
+    
+    @Test
+    public void concurrentCache() throws Exception {
+        AtomicLong clock = new AtomicLong();
+        RecordingPool pool = new RecordingPool(clock);
+        ConcurrentBitmapCache cache = new ConcurrentBitmapCache(CAPACITY);
+        cache.setBitmapPool(pool);
+        race(cache, pool, clock);
+    }
+    
+    
+    @Test
+    public void tinyLfuCache() throws Exception {
+        AtomicLong clock = new AtomicLong();
+        RecordingPool pool = new RecordingPool(clock);
+        TinyLfuBitmapCache cache = new TinyLfuBitmapCache(CAPACITY);
+        cache.setBitmapPool(pool);
+        race(cache, pool, clock);
+    }
+    
+    
+    /* Bitmaps recycled as they are evicted, as an application may do. */
+    @Test
+    public void recycledOnEviction() throws Exception {
+        final AtomicLong clock = new AtomicLong();
+        final RecordingPool recycled = new RecordingPool(clock);
+        BasicBitmapCache cache = new BasicBitmapCache(CAPACITY) {
+            @Override
+            protected void entryEvicted(String key, Bitmap data) {
+                data.recycle();
+                recycled.put(data);
+            }
+        };
+        race(cache, recycled, clock);
+    }
+    
+    
+    @Test
+    public void peekAfterInvalidateMisses() {
+        BasicBitmapCache basic = new BasicBitmapCache(CAPACITY);
+        ConcurrentBitmapCache concurrent = new ConcurrentBitmapCache(CAPACITY);
+        for (BitmapCache cache : new BitmapCache[] { basic, concurrent }) {
+            cache.storeData("a", Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888));
+            cache.invalidate("a");
+            assertNull(cache.peekData("a"));
+        }
+    }
+    
+    
+    private void race(final BitmapCache cache, final RecordingPool pool, final AtomicLong clock) 
+            throws InterruptedException {
+        
+        final Map<Bitmap, String> owners = new ConcurrentHashMap<Bitmap, String>();
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final long deadline = System.currentTimeMillis() + DURATION_MS;
+        final CountDownLatch done = new CountDownLatch(READERS + WRITERS);
+        
+        for (int t = 0; t < WRITERS; t++) {
+            final Random random = new Random(t);
+            new Thread() {
+                @Override
+                public void run() {
+                    while (System.currentTimeMillis() < deadline && failure.get() == null) {
+                        String key = "k" + random.nextInt(KEYS);
+                        if (random.nextInt(8) == 0) {
+                            cache.invalidate(key);
+                            continue;
+                        }
+                        Bitmap data = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
+                        owners.put(data, key);
+                        cache.storeData(key, data);
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        
+        for (int t = 0; t < READERS; t++) {
+            final Random random = new Random(100 + t);
+            new Thread() {
+                @Override
+                public void run() {
+                    while (System.currentTimeMillis() < deadline && failure.get() == null) {
+                        String key = "k" + random.nextInt(KEYS);
+                        long start = clock.get();
+                        Bitmap data = cache.peekData(key);
+                        if (data == null) 
+                            continue;
+                        
+                        if (!key.equals(owners.get(data))) {
+                            failure.set("peek of " + key + " returned the bitmap of " + owners.get(data));
+                        }
+                        Long evicted = pool.evictedAt.get(data);
+                        if (evicted != null && evicted <= start) {
+                            failure.set("peek of " + key + " returned a bitmap evicted before it started");
+                        }
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        
+        done.await();
+        assertNull(failure.get(), failure.get());
+        assertEquals(true, clock.get() > 0); // evictions did happen
+    }
+}
@@ -0,0 +1,72 @@
+package httpimage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class SegmentFilePersistenceTest {
+
+    private File mDir;
+    
+    
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("segments", "");
+        mDir.delete();
+        mDir.mkdirs();
+    }
+    
+    
+    @After
+    public void tearDown() {
+        DiskCacheIndexTest.delete(mDir);
+    }
+    
+    
+    @Test
+    public void sparseSegmentIsCompactedOnRollover() throws InterruptedException {
+        SegmentFilePersistence store = new SegmentFilePersistence(mDir.getPath(), 2000);
+        // overwritten while active, segment 0 ends up with one live record out of three
+        store.storeData("a", new byte[700]);
+        store.storeData("a", new byte[700]);
+        store.storeData("a", new byte[700]);
+        assertEquals(1, store.getSegmentCount());
+        
+        store.storeData("b", new byte[700]);
+        awaitSegmentCount(store, 1);
+        assertTrue(store.exists("a"));
+        assertTrue(store.exists("b"));
+    }
+    
+    
+    @Test
+    public void sparseSegmentIsCompactedOnOpen() throws IOException, InterruptedException {
+        SegmentFilePersistence store = new SegmentFilePersistence(mDir.getPath(), 2000);
+        store.storeData("a", new byte[700]);
+        store.storeData("a", new byte[700]);
+        store.storeData("a", new byte[700]);
+        // as if the process died after the rollover, before the compaction ran
+        new File(mDir, "segment.1").createNewFile();
+        
+        SegmentFilePersistence reopened = new SegmentFilePersistence(mDir.getPath(), 2000);
+        awaitSegmentCount(reopened, 1);
+        assertTrue(reopened.exists("a"));
+        assertEquals(1, mDir.list().length);
+    }
+    
+    
+    private static void awaitSegmentCount(SegmentFilePersistence store, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (store.getSegmentCount() != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, store.getSegmentCount());
+    }
+}
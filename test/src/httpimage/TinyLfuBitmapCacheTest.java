@@ -0,0 +1,61 @@
+package httpimage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import android.graphics.Bitmap;
+
+
+public class TinyLfuBitmapCacheTest {
+
+    @Test
+    public void missThroughPeekThenLoadIsCountedOnce() {
+        TinyLfuBitmapCache cache = new TinyLfuBitmapCache(10);
+        // as HttpImageManager does: peek on the UI thread, load again on a worker
+        assertNull(cache.peekData("a"));
+        assertNull(cache.loadData("a"));
+        assertEquals(1, cache.getMissCount());
+        
+        Bitmap bitmap = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
+        cache.storeData("a", bitmap);
+        assertSame(bitmap, cache.peekData("a"));
+        assertEquals(1, cache.getHitCount());
+    }
+    
+    
+    @Test
+    public void missedRequestsDontOutweighHits() {
+        // window of 1, main area of 99
+        TinyLfuBitmapCache cache = new TinyLfuBitmapCache(100);
+        Bitmap bitmap = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
+        for (int i = 0; i < 100; i++) {
+            request(cache, "resident" + i, bitmap);
+        }
+        // each resident is requested twice in all, hits included
+        for (int i = 0; i < 100; i++) {
+            request(cache, "resident" + i, bitmap);
+        }
+        
+        // newcomers requested twice, missing both times, don't displace them
+        for (int i = 0; i < 50; i++) {
+            request(cache, "new" + i, null);
+            request(cache, "new" + i, bitmap);
+        }
+        int residents = 0;
+        for (int i = 0; i < 100; i++) {
+            if (cache.exists("resident" + i)) 
+                residents++;
+        }
+        assertEquals(99, residents);
+    }
+    
+    
+    /* A request of HttpImageManager: peek, then load and store on a miss. */
+    private static void request(TinyLfuBitmapCache cache, String key, Bitmap fetched) {
+        if (cache.peekData(key) == null && cache.loadData(key) == null && fetched != null) 
+            cache.storeData(key, fetched);
+    }
+}
@@ -0,0 +1,80 @@
+package httpimage;
+
+import java.io.PrintStream;
+import java.util.Random;
+
+
+/**
+ * Synthetic key traces for CacheSimulator, seeded so that runs are reproducible.
+ * 
+ *   java httpimage.TraceGenerator hotscan|zipf [length] [seed] > trace.txt
+ * 
+ * hotscan: 30% of the requests go to 100 hot keys (e.g. avatars), following a Zipf 
+ *          distribution, the other 70% to keys used once (a long scroll). 
+ * zipf:    requests over 10000 keys following a Zipf distribution of exponent 0.9.
+ */
+public class TraceGenerator {
+
+    public static final String HOT_SCAN = "hotscan";
+    public static final String ZIPF = "zipf";
+    
+    
+    public static void main(String[] args) {
+        String kind = args.length > 0 ? args[0] : HOT_SCAN;
+        int length = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 42;
+        
+        PrintStream out = System.out;
+        for (String key : generate(kind, length, seed)) {
+            out.println(key);
+        }
+        out.flush();
+    }
+    
+    
+    public static String[] generate(String kind, int length, long seed) {
+        Random random = new Random(seed);
+        String[] trace = new String[length];
+        
+        if (HOT_SCAN.equals(kind)) {
+            Zipf hot = new Zipf(100, 0.9);
+            int oneShot = 0;
+            for (int i = 0; i < length; i++) {
+                trace[i] = random.nextDouble() < 0.3 ? "hot" + hot.next(random) : "once" + oneShot++;
+            }
+        }
+        else if (ZIPF.equals(kind)) {
+            Zipf zipf = new Zipf(10000, 0.9);
+            for (int i = 0; i < length; i++) {
+                trace[i] = "k" + zipf.next(random);
+            }
+        }
+        else {
+            throw new IllegalArgumentException("unknown trace: " + kind);
+        }
+        return trace;
+    }
+    
+    
+    /* Rank in [0, n), rank r drawn with a probability proportional to 1 / (r + 1)^s */
+    private static class Zipf {
+        private final double[] mCumulative;
+        
+        Zipf(int n, double s) {
+            mCumulative = new double[n];
+            double sum = 0;
+            for (int r = 0; r < n; r++) {
+                sum += 1 / Math.pow(r + 1, s);
+                mCumulative[r] = sum;
+            }
+            for (int r = 0; r < n; r++) {
+                mCumulative[r] /= sum;
+            }
+        }
+        
+        int next(Random random) {
+            int i = java.util.Arrays.binarySearch(mCumulative, random.nextDouble());
+            return i >= 0 ? i : Math.min(-i - 1, mCumulative.length - 1);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package android.graphics;
+
+
+/**
+ * JVM stand-in for the platform Bitmap, for the unit tests: a size, a config and 
+ * the recycled state, no pixels.
+ */
+public final class Bitmap {
+
+    public enum Config { ALPHA_8, RGB_565, ARGB_4444, ARGB_8888 }
+    
+    public enum CompressFormat { JPEG, PNG }
+    
+    
+    public static Bitmap createBitmap(int width, int height, Config config) {
+        return new Bitmap(width, height, config, true);
+    }
+    
+    
+    public static Bitmap createScaledBitmap(Bitmap src, int width, int height, boolean filter) {
+        return new Bitmap(width, height, src.getConfig(), false);
+    }
+    
+    
+    public int getWidth() {
+        return mWidth;
+    }
+    
+    
+    public int getHeight() {
+        return mHeight;
+    }
+    
+    
+    public int getRowBytes() {
+        int bytesPerPixel = mConfig == Config.ALPHA_8 ? 1 
+                : mConfig == Config.ARGB_8888 ? 4 : 2;
+        return mWidth * bytesPerPixel;
+    }
+    
+    
+    public Config getConfig() {
+        return mConfig;
+    }
+    
+    
+    public boolean isMutable() {
+        return mMutable;
+    }
+    
+    
+    public boolean hasAlpha() {
+        return mConfig != Config.RGB_565;
+    }
+    
+    
+    public synchronized boolean isRecycled() {
+        return mRecycled;
+    }
+    
+    
+    public synchronized void recycle() {
+        mRecycled = true;
+    }
+    
+    
+    public boolean compress(CompressFormat format, int quality, java.io.OutputStream stream) {
+        throw new UnsupportedOperationException();
+    }
+    
+    
+    private Bitmap(int width, int height, Config config, boolean mutable) {
+        mWidth = width;
+        mHeight = height;
+        mConfig = config;
+        mMutable = mutable;
+    }
+    
+    
+    private final int mWidth;
+    private final int mHeight;
+    private final Config mConfig;
+    private final boolean mMutable;
+    private boolean mRecycled;
+}
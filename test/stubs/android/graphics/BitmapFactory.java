@@ -0,0 +1,58 @@
+package android.graphics;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.imageio.ImageIO;
+
+
+/**
+ * JVM stand-in for the platform BitmapFactory, for the unit tests. Images are decoded 
+ * with ImageIO, into a Bitmap of the decoded size without pixels; what ImageIO can't 
+ * decode gives null.
+ */
+public class BitmapFactory {
+
+    public static class Options {
+        public boolean inJustDecodeBounds;
+        public int inSampleSize;
+        public Bitmap.Config inPreferredConfig;
+        public int outWidth;
+        public int outHeight;
+        public String outMimeType;
+    }
+    
+    
+    public static Bitmap decodeByteArray(byte[] data, int offset, int length, Options opts) {
+        return decodeStream(new ByteArrayInputStream(data, offset, length), null, opts);
+    }
+    
+    
+    public static Bitmap decodeStream(InputStream is, Rect outPadding, Options opts) {
+        BufferedImage image;
+        try {
+            image = ImageIO.read(is);
+        } catch (IOException e) {
+            return null;
+        }
+        if (image == null) {
+            return null;
+        }
+        
+        if (opts == null) {
+            opts = new Options();
+        }
+        opts.outWidth = image.getWidth();
+        opts.outHeight = image.getHeight();
+        if (opts.inJustDecodeBounds) {
+            return null;
+        }
+        
+        int sampleSize = Math.max(1, opts.inSampleSize);
+        Bitmap.Config config = opts.inPreferredConfig != null ? opts.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        return Bitmap.createBitmap((opts.outWidth + sampleSize - 1) / sampleSize, 
+                (opts.outHeight + sampleSize - 1) / sampleSize, config);
+    }
+}
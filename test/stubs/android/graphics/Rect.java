@@ -0,0 +1,66 @@
+package android.graphics;
+
+
+/**
+ * JVM stand-in for the platform Rect, for the unit tests.
+ */
+public final class Rect {
+
+    public int left;
+    public int top;
+    public int right;
+    public int bottom;
+    
+    
+    public Rect() {
+    }
+    
+    
+    public Rect(int left, int top, int right, int bottom) {
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+    }
+    
+    
+    public Rect(Rect r) {
+        this(r.left, r.top, r.right, r.bottom);
+    }
+    
+    
+    public int width() {
+        return right - left;
+    }
+    
+    
+    public int height() {
+        return bottom - top;
+    }
+    
+    
+    public static boolean intersects(Rect a, Rect b) {
+        return a.left < b.right && b.left < a.right && a.top < b.bottom && b.top < a.bottom;
+    }
+    
+    
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Rect)) 
+            return false;
+        Rect r = (Rect) o;
+        return left == r.left && top == r.top && right == r.right && bottom == r.bottom;
+    }
+    
+    
+    @Override
+    public int hashCode() {
+        return ((left * 31 + top) * 31 + right) * 31 + bottom;
+    }
+    
+    
+    @Override
+    public String toString() {
+        return "Rect(" + left + ", " + top + " - " + right + ", " + bottom + ")";
+    }
+}
@@ -0,0 +1,12 @@
+package android.os;
+
+
+/**
+ * JVM stand-in for the platform Build, for the unit tests: the minimum SDK of the library.
+ */
+public class Build {
+
+    public static class VERSION {
+        public static final int SDK_INT = 8;
+    }
+}
@@ -0,0 +1,47 @@
+package android.util;
+
+
+/**
+ * JVM stand-in for the platform Log, for the unit tests. Warnings and errors go to stderr.
+ */
+public final class Log {
+
+    public static int d(String tag, String msg) {
+        return 0;
+    }
+    
+    
+    public static int i(String tag, String msg) {
+        return 0;
+    }
+    
+    
+    public static int w(String tag, String msg) {
+        System.err.println(tag + ": " + msg);
+        return 0;
+    }
+    
+    
+    public static int w(String tag, Throwable tr) {
+        System.err.println(tag + ": " + tr);
+        return 0;
+    }
+    
+    
+    public static int w(String tag, String msg, Throwable tr) {
+        System.err.println(tag + ": " + msg + " " + tr);
+        return 0;
+    }
+    
+    
+    public static int e(String tag, String msg) {
+        System.err.println(tag + ": " + msg);
+        return 0;
+    }
+    
+    
+    public static int e(String tag, String msg, Throwable tr) {
+        System.err.println(tag + ": " + msg + " " + tr);
+        return 0;
+    }
+}